@@ -0,0 +1,227 @@
+package com.fuse.android;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.io.FileDescriptor;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+	A memory capped pool of mutable bitmaps, bucketed by allocation size.
+
+	Code that would otherwise allocate a large bitmap and recycle it right after use can borrow
+	one with get() or let BitmapFactory decode into one with decodeFile(), and hand it back with
+	put() when done. This keeps steady state image work from churning the native heap.
+*/
+public class BitmapPool
+{
+	// A pooled bitmap is only handed out for a request if it is at most this many times too large
+	static final int MAX_SIZE_MULTIPLE = 4;
+
+	static final TreeMap<Integer, ArrayDeque<Bitmap>> _buckets = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+	// Least recently returned first
+	static final ArrayDeque<Bitmap> _lru = new ArrayDeque<Bitmap>();
+
+	static long _maxBytes = Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024);
+	static long _currentBytes;
+
+	static long _hits;
+	static long _misses;
+	static long _evictions;
+
+	static boolean isSupported()
+	{
+		// reconfigure() and inBitmap of a different size need KitKat
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	static int bytesPerPixel(Bitmap.Config config)
+	{
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+			return 2;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16)
+			return 8;
+		return 4;
+	}
+
+	/*
+		Removes and returns a pooled bitmap with room for byteCount bytes, or null.
+	*/
+	static synchronized Bitmap take(int byteCount)
+	{
+		Map.Entry<Integer, ArrayDeque<Bitmap>> entry = _buckets.ceilingEntry(byteCount);
+		if (entry == null || entry.getKey() > (long)byteCount * MAX_SIZE_MULTIPLE)
+		{
+			_misses++;
+			return null;
+		}
+
+		ArrayDeque<Bitmap> bucket = entry.getValue();
+		Bitmap bitmap = bucket.pollLast();
+		if (bucket.isEmpty())
+			_buckets.remove(entry.getKey());
+		_lru.remove(bitmap);
+		_currentBytes -= entry.getKey();
+		_hits++;
+		return bitmap;
+	}
+
+	/*
+		Returns a cleared, mutable bitmap of the given size, reusing a pooled one when possible.
+	*/
+	public static Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		if (isSupported())
+		{
+			Bitmap bitmap = take(width * height * bytesPerPixel(config));
+			if (bitmap != null)
+			{
+				try {
+					bitmap.reconfigure(width, height, config);
+					bitmap.eraseColor(Color.TRANSPARENT);
+					return bitmap;
+				} catch (IllegalArgumentException e) {
+					bitmap.recycle();
+				}
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/*
+		Decodes a file, letting BitmapFactory decode into a pooled bitmap when one fits.
+		decodedWidth and decodedHeight are the expected size after options.inSampleSize.
+	*/
+	public static Bitmap decodeFile(String path, BitmapFactory.Options options, int decodedWidth, int decodedHeight)
+	{
+		return decode(path, null, options, decodedWidth, decodedHeight);
+	}
+
+	/*
+		As decodeFile, for an open, seekable file descriptor, e.g. from ContentResolver.openFileDescriptor().
+	*/
+	public static Bitmap decodeFileDescriptor(FileDescriptor fd, BitmapFactory.Options options, int decodedWidth, int decodedHeight)
+	{
+		return decode(null, fd, options, decodedWidth, decodedHeight);
+	}
+
+	static Bitmap decodeRaw(String path, FileDescriptor fd, BitmapFactory.Options options)
+	{
+		return path != null ? BitmapFactory.decodeFile(path, options) : BitmapFactory.decodeFileDescriptor(fd, null, options);
+	}
+
+	static Bitmap decode(String path, FileDescriptor fd, BitmapFactory.Options options, int decodedWidth, int decodedHeight)
+	{
+		if (isSupported() && options.inBitmap == null && !options.inJustDecodeBounds)
+		{
+			Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+			Bitmap candidate = take(decodedWidth * decodedHeight * bytesPerPixel(config));
+			if (candidate != null)
+			{
+				options.inBitmap = candidate;
+				options.inMutable = true;
+				try {
+					Bitmap result = decodeRaw(path, fd, options);
+					if (result != null)
+						return result;
+				} catch (IllegalArgumentException e) {
+					// The decoder could not reuse the candidate, e.g. due to an unexpected config
+				} finally {
+					options.inBitmap = null;
+				}
+				put(candidate);
+			}
+		}
+		return decodeRaw(path, fd, options);
+	}
+
+	/*
+		Hands a bitmap back to the pool. The caller must not use it afterwards.
+		Bitmaps that can't be reused, or don't fit in the pool, are recycled.
+	*/
+	public static void put(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled())
+			return;
+
+		if (!isSupported() || !bitmap.isMutable())
+		{
+			bitmap.recycle();
+			return;
+		}
+
+		int size = bitmap.getAllocationByteCount();
+		synchronized (BitmapPool.class)
+		{
+			// Already pooled
+			if (_lru.contains(bitmap))
+				return;
+
+			if (size > _maxBytes / 2)
+			{
+				bitmap.recycle();
+				return;
+			}
+
+			ArrayDeque<Bitmap> bucket = _buckets.get(size);
+			if (bucket == null)
+			{
+				bucket = new ArrayDeque<Bitmap>();
+				_buckets.put(size, bucket);
+			}
+			bucket.addLast(bitmap);
+			_lru.addLast(bitmap);
+			_currentBytes += size;
+			trimTo(_maxBytes);
+		}
+	}
+
+	static synchronized void trimTo(long maxBytes)
+	{
+		while (_currentBytes > maxBytes && !_lru.isEmpty())
+		{
+			Bitmap bitmap = _lru.pollFirst();
+			int size = bitmap.getAllocationByteCount();
+			ArrayDeque<Bitmap> bucket = _buckets.get(size);
+			if (bucket != null)
+			{
+				bucket.remove(bitmap);
+				if (bucket.isEmpty())
+					_buckets.remove(size);
+			}
+			_currentBytes -= size;
+			_evictions++;
+			bitmap.recycle();
+		}
+	}
+
+	public static synchronized void setMaxBytes(long maxBytes)
+	{
+		_maxBytes = Math.max(0, maxBytes);
+		trimTo(_maxBytes);
+	}
+
+	// Drops all pooled bitmaps, e.g. from onTrimMemory
+	public static synchronized void clear()
+	{
+		trimTo(0);
+	}
+
+	public static synchronized long getMaxBytes() { return _maxBytes; }
+	public static synchronized long getCurrentBytes() { return _currentBytes; }
+	public static synchronized long getHitCount() { return _hits; }
+	public static synchronized long getMissCount() { return _misses; }
+	public static synchronized long getEvictionCount() { return _evictions; }
+
+	public static synchronized String getStats()
+	{
+		return "BitmapPool: " + _lru.size() + " bitmaps, " + _currentBytes + "/" + _maxBytes + " bytes, "
+			+ _hits + " hits, " + _misses + " misses, " + _evictions + " evictions";
+	}
+}
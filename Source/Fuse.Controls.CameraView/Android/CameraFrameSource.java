@@ -0,0 +1,34 @@
+package com.fuse.controls.cameraview;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+// Feeds a PreviewFrameStream from a camera's preview, using the camera's own callback buffer queue
+final class CameraFrameSource implements IPreviewFrameSource, Camera.PreviewCallback {
+
+    final Camera _camera;
+    PreviewFrameStream _stream;
+
+    CameraFrameSource(Camera camera) {
+        _camera = camera;
+    }
+
+    public void start(PreviewFrameStream stream) {
+        _stream = stream;
+        _camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    // Called from the preview frame thread as well as the camera thread; the camera synchronizes its buffer queue
+    public void addBuffer(byte[] buffer) {
+        _camera.addCallbackBuffer(buffer);
+    }
+
+    // Also drops the camera's queued buffers
+    public void stop() {
+        _camera.setPreviewCallbackWithBuffer(null);
+    }
+
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        _stream.onFrame(data, SystemClock.elapsedRealtimeNanos());
+    }
+}
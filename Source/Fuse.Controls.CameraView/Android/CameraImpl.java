@@ -13,30 +13,47 @@ import android.graphics.SurfaceTexture;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.media.MediaRecorder;
+import android.media.CamcorderProfile;
 import android.view.OrientationEventListener;
 import android.util.Log;
 import android.view.Display;
+import java.util.concurrent.Callable;
 
 public class CameraImpl extends TextureView implements TextureView.SurfaceTextureListener {
 
+    // Only used on CameraThread, except for the immutable capabilities of _parameters
     final Camera _camera;
+    final CameraParameters _parameters;
     boolean _autoFocus;
     final int _maxWidth;
     final int _maxHeight;
     final int _cameraId;
+    final CameraThread.StartupTimings _timings;
     final OrientationEventListener _orientationListener;
 
-    int _cameraRotation = 0;
+    volatile int _cameraRotation = 0;
     int _previewWidth;
     int _previewHeight;
 
-    public CameraImpl(Context context, Camera camera, int cameraId, int maxWidth, int maxHeight) {
+    // Set on the UI thread, 0 to size the preview for the view
+    int _analysisWidth;
+    int _analysisHeight;
+    // Only changed on CameraThread
+    volatile PreviewFrameStream _frameStream;
+    final CaptureQueue _captureQueue;
+    CameraFrameSource _frameSource;
+    Size _previewSize;
+
+    public CameraImpl(Context context, CameraThread.OpenCamera camera, int maxWidth, int maxHeight) {
         super(context);
         _maxWidth = maxWidth;
         _maxHeight = maxHeight;
-        _camera = camera;
-        _cameraId = cameraId;
-        _autoFocus = initFocus();
+        _camera = camera.camera;
+        _cameraId = camera.cameraId;
+        _parameters = camera.parameters;
+        _autoFocus = camera.autoFocus;
+        _timings = camera.timings;
+        _captureQueue = new CaptureQueue(this, _camera);
         setSurfaceTextureListener(this);
         _orientationListener = new OrientationEventListener(context) {
 
@@ -44,8 +61,7 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
             public void onOrientationChanged(int orientation) {
                 if (orientation == OrientationEventListener.ORIENTATION_UNKNOWN)
                     return;
-                Camera.CameraInfo info = new Camera.CameraInfo();
-                Camera.getCameraInfo(_cameraId, info);
+                Camera.CameraInfo info = CameraThread.getCameraInfo(_cameraId);
                 int displayRotation = getDisplayRotationDegrees();
                 orientation = (orientation + 45) / 90 * 90;
                 int rotation = 0;
@@ -70,54 +86,61 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
     void resumeFocus() {
         if (!_autoFocus)
             return;
-        List<String> focusModes = _camera.getParameters().getSupportedFocusModes();
-        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+        if (_parameters.supported().supportsFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
             _camera.cancelAutoFocus();
         }
     }
 
-    boolean initFocus() {
-        Camera.Parameters parameters = _camera.getParameters();
-        List<String> focusModes = parameters.getSupportedFocusModes();
+    // Called on CameraThread when the camera is opened
+    static boolean initFocus(CameraParameters cameraParameters) {
+        CameraParameters.Capabilities supported = cameraParameters.supported();
+        Camera.Parameters parameters = cameraParameters.begin();
         boolean autoFocus = false;
-        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+        if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
             parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
             autoFocus = true;
-        } else if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+        } else if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_AUTO)) {
             parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
             autoFocus = true;
         }
-        _camera.setParameters(parameters);
+        cameraParameters.commit();
         return autoFocus;
     }
 
     boolean _previewRunning = false;
 
-    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-        Camera.Parameters parameters = _camera.getParameters();
-        Size pictureSize = getPictureSize(parameters.getSupportedPictureSizes(), width, height);
-        parameters.setPictureSize(pictureSize.width, pictureSize.height);
-        Camera.Size previewSize = getOptimalPreviewSize(parameters.getSupportedPreviewSizes(), width, height, pictureSize);
-        UpdateTransform(previewSize, width, height);
-        parameters.setPreviewSize(previewSize.width, previewSize.height);
-        try {
-            _camera.setParameters(parameters);
-            _camera.setDisplayOrientation(getPreviewRotation());
-            _camera.setPreviewTexture(surface);
-            _camera.startPreview();
-            _previewRunning = true;
-        } catch(Exception e) {
-            android.util.Log.d(toString(), e.getMessage());
-        }
+    public void onSurfaceTextureAvailable(final SurfaceTexture surface, int width, int height) {
+        _timings.mark(CameraThread.StartupTimings.SURFACE_AVAILABLE);
+        final Size[] sizes = choosePreviewSizes(width, height);
+        final int previewRotation = getPreviewRotation();
+        _previewRunning = true;
+        CameraThread.post(new Runnable() {
+            public void run() {
+                try {
+                    applyPreviewSizes(sizes);
+                    _camera.setDisplayOrientation(previewRotation);
+                    _camera.setPreviewTexture(surface);
+                    _camera.startPreview();
+                    _timings.mark(CameraThread.StartupTimings.PREVIEW_STARTED);
+                } catch(Exception e) {
+                    android.util.Log.d(toString(), e.getMessage());
+                }
+            }
+        });
     }
 
+    // The surface is released when this returns, so the camera has to let go of it first
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-        _camera.stopPreview();
-        try {
-            _camera.setPreviewTexture(null);
-        } catch(Exception e) {
-            android.util.Log.d(toString(), e.getMessage());
-        }
+        CameraThread.runAndWait(new Runnable() {
+            public void run() {
+                _camera.stopPreview();
+                try {
+                    _camera.setPreviewTexture(null);
+                } catch(Exception e) {
+                    android.util.Log.d(toString(), e.getMessage());
+                }
+            }
+        });
         return true;
     }
 
@@ -125,7 +148,14 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
         updatePreview(width, height);
     }
 
-    public void onSurfaceTextureUpdated(SurfaceTexture surface) {}
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        if (!_timings.isMarked(CameraThread.StartupTimings.FIRST_FRAME))
+            _timings.mark(CameraThread.StartupTimings.FIRST_FRAME);
+    }
+
+    public int[] getStartupTimings() {
+        return _timings.toArray();
+    }
 
     boolean _shouldFill = false;
     public void updateStretchMode(boolean shouldFill) {
@@ -135,16 +165,99 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
     }
 
     void updatePreview(int width, int height) {
-        _camera.stopPreview();
-        Camera.Parameters parameters = _camera.getParameters();
-        Size pictureSize = getPictureSize(parameters.getSupportedPictureSizes(), width, height);
-        parameters.setPictureSize(pictureSize.width, pictureSize.height);
-        Camera.Size previewSize = getOptimalPreviewSize(parameters.getSupportedPreviewSizes(), width, height, pictureSize);
+        final Size[] sizes = choosePreviewSizes(width, height);
+        final int previewRotation = getPreviewRotation();
+        CameraThread.post(new Runnable() {
+            public void run() {
+                try {
+                    _camera.stopPreview();
+                    _camera.setDisplayOrientation(previewRotation);
+                    applyPreviewSizes(sizes);
+                    _camera.startPreview();
+                } catch(Exception e) {
+                    android.util.Log.d(toString(), e.getMessage());
+                }
+            }
+        });
+    }
+
+    /*
+        Picks picture and preview sizes for a view of the given size and fits the preview to the
+        view. Runs on the UI thread, as it only needs the camera's capabilities.
+    */
+    Size[] choosePreviewSizes(int width, int height) {
+        CameraParameters.Capabilities supported = _parameters.supported();
+        Size pictureSize = getPictureSize(supported.pictureSizes, width, height);
+        Camera.Size previewSize = _analysisHeight > 0
+            ? getOptimalPreviewSize(supported.previewSizes, _analysisWidth, _analysisHeight, pictureSize)
+            : getOptimalPreviewSize(supported.previewSizes, width, height, pictureSize);
         UpdateTransform(previewSize, width, height);
-        parameters.setPreviewSize(previewSize.width, previewSize.height);
-        _camera.setDisplayOrientation(getPreviewRotation());
-        _camera.setParameters(parameters);
-        _camera.startPreview();
+        return new Size[] { pictureSize, previewSize };
+    }
+
+    // Applies the sizes from choosePreviewSizes in one parameter write, on CameraThread
+    void applyPreviewSizes(Size[] sizes) {
+        Camera.Parameters parameters = _parameters.begin();
+        parameters.setPictureSize(sizes[0].width, sizes[0].height);
+        parameters.setPreviewSize(sizes[1].width, sizes[1].height);
+        _parameters.commit();
+        _previewSize = sizes[1];
+        startFrameStream();
+    }
+
+    /*
+        Streams preview frames to consumer on a background thread, or stops if consumer is null.
+        The camera has a single preview stream, so a non-zero analysis size (in sensor orientation)
+        picks the preview size closest to it, instead of the one closest to the view. At most maxFps
+        frames per second are delivered, 0 for no limit.
+    */
+    public void setPreviewFrameConsumer(final IPreviewFrameConsumer consumer, int analysisWidth, int analysisHeight, final int maxFps) {
+        if (consumer == null)
+            analysisWidth = analysisHeight = 0;
+        final boolean restartPreview = _previewRunning && (analysisWidth != _analysisWidth || analysisHeight != _analysisHeight);
+        _analysisWidth = analysisWidth;
+        _analysisHeight = analysisHeight;
+
+        CameraThread.post(new Runnable() {
+            public void run() {
+                if (consumer == null) {
+                    stopFrameStream();
+                    return;
+                }
+                if (_frameStream == null)
+                    _frameStream = new PreviewFrameStream(consumer);
+                else
+                    _frameStream.setConsumer(consumer);
+                _frameStream.setMaxFps(maxFps);
+                // Otherwise the preview is restarted at the new size below, which starts the stream
+                if (!restartPreview)
+                    startFrameStream();
+            }
+        });
+        if (restartPreview)
+            updatePreview(getWidth(), getHeight());
+    }
+
+    // received, delivered, dropped because the consumer was busy, skipped by the frame-rate cap
+    public long[] getPreviewFrameStats() {
+        PreviewFrameStream stream = _frameStream;
+        return stream != null ? stream.getStats() : new long[4];
+    }
+
+    // On CameraThread, whenever the preview size is set
+    void startFrameStream() {
+        if (_frameStream == null || _previewSize == null)
+            return;
+        if (_frameSource == null)
+            _frameSource = new CameraFrameSource(_camera);
+        _frameStream.start(_frameSource, _previewSize.width, _previewSize.height, _parameters.get().getPreviewFormat());
+    }
+
+    void stopFrameStream() {
+        if (_frameStream != null) {
+            _frameStream.stop();
+            _frameStream = null;
+        }
     }
 
     void UpdateTransform(Size previewSize, int width, int height) {
@@ -182,13 +295,33 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
     }
 
     public String saveParameters() {
-        return _camera.getParameters().flatten();
+        try {
+            return CameraThread.call(new Callable<String>() {
+                public String call() {
+                    return _parameters.flatten();
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    public void restoreParameters(String str) {
-        Camera.Parameters parameters = _camera.getParameters();
-        parameters.unflatten(str);
-        _camera.setParameters(parameters);
+    public void restoreParameters(final String str) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                _parameters.unflatten(str);
+            }
+        });
+    }
+
+    public List<Size> getSupportedPictureSizes() {
+        return _parameters.supported().pictureSizes;
+    }
+
+    public boolean supportsFlashMode(String flashMode) {
+        return _parameters.supported().supportsFlashMode(flashMode);
     }
 
     Size _userPictureSize = null;
@@ -205,183 +338,204 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
         return getOptimalSize(sizes, _maxWidth, _maxHeight, width, height);
     }
 
+    // Only writes to the camera when the rotation has changed since the last shot
     void updateRotation() {
-        Camera.Parameters parameters = _camera.getParameters();
-        parameters.setRotation(_cameraRotation);
-        _camera.setParameters(parameters);
+        _parameters.begin().setRotation(_cameraRotation);
+        _parameters.commit();
     }
 
+    // Queued behind any capture in flight. The camera delivers its callbacks on CameraThread, results are reported on the UI thread
     public void takePicture(final IPictureCallback pictureCallback) {
-        final Camera.PictureCallback jpegCallback = new Camera.PictureCallback() {
-            public void onPictureTaken(byte[] data, Camera camera) {
-                pictureCallback.onPictureTaken(data);
-                camera.startPreview();
-                resumeFocus();
-            }
-        };
-        try {
-            updateRotation();
-            if (_autoFocus) {
-                _camera.autoFocus(new Camera.AutoFocusCallback() {
-                    public void onAutoFocus(boolean success, Camera camera) {
-                        try {
-                            _camera.takePicture(null, null, null, jpegCallback);
-                        } catch (Exception e) {
-                            pictureCallback.onError(e);
+        _captureQueue.enqueue(new CaptureQueue.Request(pictureCallback, null, false));
+    }
+
+    /*
+        Takes a picture and writes it to a file in the background, without the JPEG passing through
+        the caller. Can be called again before the previous picture is done, for bursts. With
+        skipFocus the camera doesn't focus first, for shots where focus has already been set.
+    */
+    public void capture(boolean skipFocus, ICaptureCallback captureCallback) {
+        _captureQueue.enqueue(new CaptureQueue.Request(null, captureCallback, skipFocus));
+    }
+
+    public void startRecording(final IStartRecordingSession startRecordingSession) {
+        startRecording(RecordingOptions.DEFAULT, startRecordingSession);
+    }
+
+    public void startRecording(final RecordingOptions options, final IStartRecordingSession startRecordingSession) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                CamcorderProfile profile;
+                try {
+                    profile = options.getProfile(_cameraId, _parameters.supported().videoSizes);
+                } catch (final Exception e) {
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            startRecordingSession.onException(e.getMessage());
                         }
-                    }
-                });
-            } else {
-                _camera.takePicture(null, null, null, jpegCallback);
+                    });
+                    return;
+                }
+                try {
+                    updateRotation();
+                    _camera.unlock();
+                    final RecordingSession session = new RecordingSession(_camera, _cameraRotation, profile, options);
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            startRecordingSession.onSuccess(session);
+                        }
+                    });
+                } catch (final Exception e) {
+                    _camera.lock();
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            startRecordingSession.onException(e.getMessage());
+                        }
+                    });
+                }
             }
-        }
-        catch(Exception e) {
-            pictureCallback.onError(e);
-        }
+        });
     }
 
-    public void startRecording(IStartRecordingSession startRecordingSession) {
-        try {
-            updateRotation();
-            _camera.unlock();
-            startRecordingSession.onSuccess(new RecordingSession(_camera, _cameraRotation));
-        } catch (Exception e) {
-            _camera.lock();
-            startRecordingSession.onException(e.getMessage());
-        }
+    public void setFlashMode(final String flashMode) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                _parameters.begin().setFlashMode(flashMode);
+                _parameters.commit();
+            }
+        });
     }
 
-    public void setFlashMode(String flashMode) {
-        android.hardware.Camera.Parameters p = _camera.getParameters();
-        p.setFlashMode(flashMode);
-        _camera.setParameters(p);
+    public void setCameraFocusPoint(final Double x, final Double y, final int cameraWidth, final int cameraHeight, final int isFocusLocked) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                applyCameraFocusPoint(x, y, cameraWidth, cameraHeight, isFocusLocked);
+            }
+        });
     }
 
-    public void setCameraFocusPoint(Double x, Double y, int cameraWidth, int cameraHeight, int isFocusLocked) {
+    void applyCameraFocusPoint(Double x, Double y, int cameraWidth, int cameraHeight, int isFocusLocked) {
 
         _camera.cancelAutoFocus();
 
-        android.hardware.Camera.Parameters parameters = _camera.getParameters();
+        CameraParameters.Capabilities supported = _parameters.supported();
 
-        if (parameters.getMaxNumMeteringAreas() > 0) {
+        if (supported.maxNumMeteringAreas > 0) {
 
             try {
 
-                List<String> focusModes = parameters.getSupportedFocusModes();
+                // Unlocking, the new focus area and exposure, and locking again all go out in one write
+                android.hardware.Camera.Parameters parameters = _parameters.begin();
+                try {
 
-                if (isFocusLocked != 1) {
+                    if (isFocusLocked != 1) {
 
-                    if (focusModes.contains(Camera.Parameters.FOCUS_MODE_MACRO)) {
+                        if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_MACRO)) {
 
-                        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                            if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                            }
                         }
-                    }
 
-                    if (parameters.isAutoExposureLockSupported()) {
+                        if (supported.autoExposureLockSupported) {
 
-                        parameters.setAutoExposureLock(false);
-                    }
+                            parameters.setAutoExposureLock(false);
+                        }
 
-                    if (parameters.isAutoWhiteBalanceLockSupported()) {
+                        if (supported.autoWhiteBalanceLockSupported) {
 
-                        parameters.setAutoWhiteBalanceLock(false);
+                            parameters.setAutoWhiteBalanceLock(false);
+                        }
                     }
 
-                    _camera.setParameters(parameters);
-                }
-
-                /*
-                Get focus coordinates according to camera dimensions and focus area size
-                Reference - https://developer.android.com/reference/android/hardware/Camera.Parameters#getFocusAreas%28%29
-                - Each focus area is a rectangle with specified weight.
-                - Coordinates of the rectangle range from -1000 to 1000
-                - (-1000, -1000) is the upper left point.
-                - (1000, 1000) is the lower right point.
-                - The width and height of focus areas cannot be 0 or negative.
-                */
-                int focus_area_size = 300;
-                int left = clamp(Float.valueOf((float)(x / cameraWidth) * 2000 - 1000).intValue(), focus_area_size);
-                int top = clamp(Float.valueOf((float)(y / cameraHeight) * 2000 - 1000).intValue(), focus_area_size);
-
-                Display display = com.fuse.Activity.getRootActivity().getWindowManager().getDefaultDisplay();
-                Double tmp;
-                Rect rect;
-                switch(display.getRotation()) {
-                    default: //compiler complains if there's a possibility of rect not being defined
-                    case Surface.ROTATION_0: //portrait
-                        rect = new Rect(left, top, left + focus_area_size, top + focus_area_size);
-                        break;
-                    case Surface.ROTATION_90: //landscape right
-                        rect = new Rect(top, left, top + focus_area_size, left + focus_area_size);
-                        break;
-                    case Surface.ROTATION_180: //portrait upsidedown
-                        rect = new Rect(top, left, top + focus_area_size, left + focus_area_size);
-                        break;
-                    case Surface.ROTATION_270: //landscape left
-                        rect = new Rect(left, top, left + focus_area_size, top + focus_area_size);
-                        break;
-                }
-
-                /*
-                Reference - https://developer.android.com/reference/android/hardware/Camera.Area
-                Camera.Area(rect, weight)
-                - rect - Bounds of the area.
-                - weight - Weight of the area.
-                  The weight must range from 1 to 1000, and represents a weight for every pixel in the area.
-                */
-                List<Camera.Area> meteringAreas = new ArrayList<Camera.Area>();
-                meteringAreas.add(new Camera.Area(rect, 1000));
-                parameters.setFocusAreas(meteringAreas);
-
-                if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-                }
-
-                if (parameters.getMinExposureCompensation() != 0
-                    && parameters.getMaxExposureCompensation() != 0
-                    && parameters.isAutoExposureLockSupported()
-                ) {
-
-                    int exposureAmount = (parameters.getMinExposureCompensation() - parameters.getMaxExposureCompensation()) * -1;
-                    int designAdjustment = 1; //added 1 to account for a control panel covered area on the bottom of the camera that can't be tapped on for focus
-                    if ((y/cameraHeight) < 0.5) { //apply adjustment only if tap is in upper half of camera area
-                        designAdjustment = 0;
+                    /*
+                    Get focus coordinates according to camera dimensions and focus area size
+                    Reference - https://developer.android.com/reference/android/hardware/Camera.Parameters#getFocusAreas%28%29
+                    - Each focus area is a rectangle with specified weight.
+                    - Coordinates of the rectangle range from -1000 to 1000
+                    - (-1000, -1000) is the upper left point.
+                    - (1000, 1000) is the lower right point.
+                    - The width and height of focus areas cannot be 0 or negative.
+                    */
+                    int focus_area_size = 300;
+                    int left = clamp(Float.valueOf((float)(x / cameraWidth) * 2000 - 1000).intValue(), focus_area_size);
+                    int top = clamp(Float.valueOf((float)(y / cameraHeight) * 2000 - 1000).intValue(), focus_area_size);
+
+                    Display display = com.fuse.Activity.getRootActivity().getWindowManager().getDefaultDisplay();
+                    Rect rect;
+                    switch(display.getRotation()) {
+                        default: //compiler complains if there's a possibility of rect not being defined
+                        case Surface.ROTATION_0: //portrait
+                            rect = new Rect(left, top, left + focus_area_size, top + focus_area_size);
+                            break;
+                        case Surface.ROTATION_90: //landscape right
+                            rect = new Rect(top, left, top + focus_area_size, left + focus_area_size);
+                            break;
+                        case Surface.ROTATION_180: //portrait upsidedown
+                            rect = new Rect(top, left, top + focus_area_size, left + focus_area_size);
+                            break;
+                        case Surface.ROTATION_270: //landscape left
+                            rect = new Rect(left, top, left + focus_area_size, top + focus_area_size);
+                            break;
                     }
 
                     /*
-                    - determine the amount of exposure to apply according to the position of the tap
-                    - taps closer to the bottom controls or user are closer so typically require more exposure
+                    Reference - https://developer.android.com/reference/android/hardware/Camera.Area
+                    Camera.Area(rect, weight)
+                    - rect - Bounds of the area.
+                    - weight - Weight of the area.
+                      The weight must range from 1 to 1000, and represents a weight for every pixel in the area.
                     */
-                    int amountApplied = (int)Math.round( (exposureAmount * (y/cameraHeight)) ) + designAdjustment;
-                    amountApplied = (amountApplied > exposureAmount) ? exposureAmount : amountApplied;
+                    List<Camera.Area> meteringAreas = new ArrayList<Camera.Area>();
+                    meteringAreas.add(new Camera.Area(rect, 1000));
+                    parameters.setFocusAreas(meteringAreas);
 
-                    parameters.setExposureCompensation(parameters.getMinExposureCompensation() + amountApplied);
+                    if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+                    }
 
-                    parameters.setAutoExposureLock(false);
-                }
+                    if (supported.minExposureCompensation != 0
+                        && supported.maxExposureCompensation != 0
+                        && supported.autoExposureLockSupported
+                    ) {
+
+                        int exposureAmount = (supported.minExposureCompensation - supported.maxExposureCompensation) * -1;
+                        int designAdjustment = 1; //added 1 to account for a control panel covered area on the bottom of the camera that can't be tapped on for focus
+                        if ((y/cameraHeight) < 0.5) { //apply adjustment only if tap is in upper half of camera area
+                            designAdjustment = 0;
+                        }
 
-                _camera.setParameters(parameters);
+                        /*
+                        - determine the amount of exposure to apply according to the position of the tap
+                        - taps closer to the bottom controls or user are closer so typically require more exposure
+                        */
+                        int amountApplied = (int)Math.round( (exposureAmount * (y/cameraHeight)) ) + designAdjustment;
+                        amountApplied = (amountApplied > exposureAmount) ? exposureAmount : amountApplied;
 
-                //check for lock
-                if (isFocusLocked == 1) {
+                        parameters.setExposureCompensation(supported.minExposureCompensation + amountApplied);
 
-                    if (focusModes.contains(Camera.Parameters.FOCUS_MODE_MACRO)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_MACRO);
+                        parameters.setAutoExposureLock(false);
                     }
 
-                    if (parameters.isAutoExposureLockSupported()) {
+                    //check for lock
+                    if (isFocusLocked == 1) {
 
-                        parameters.setAutoExposureLock(true);
-                    }
+                        if (supported.supportsFocusMode(Camera.Parameters.FOCUS_MODE_MACRO)) {
+                            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_MACRO);
+                        }
 
-                    if (parameters.isAutoWhiteBalanceLockSupported()) {
+                        if (supported.autoExposureLockSupported) {
 
-                        parameters.setAutoWhiteBalanceLock(true);
-                    }
+                            parameters.setAutoExposureLock(true);
+                        }
 
-                    _camera.setParameters(parameters);
+                        if (supported.autoWhiteBalanceLockSupported) {
 
+                            parameters.setAutoWhiteBalanceLock(true);
+                        }
+                    }
+                } finally {
+                    _parameters.commit();
                 }
 
                 _autoFocus = false;
@@ -396,14 +550,14 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
                     @Override
                     public void onAutoFocus(boolean success, Camera camera) {
 
-                        if (_camera.getParameters().getFocusMode().equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                        if (_parameters.get().getFocusMode().equals(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
 
-                            android.hardware.Camera.Parameters parameters = _camera.getParameters();
+                            android.hardware.Camera.Parameters parameters = _parameters.begin();
                             parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-                            if (parameters.getMaxNumFocusAreas() > 0) {
+                            if (_parameters.supported().maxNumFocusAreas > 0) {
                                 parameters.setFocusAreas(null);
                             }
-                            _camera.setParameters(parameters);
+                            _parameters.commit();
                             _camera.startPreview();
                         }
                     }
@@ -432,8 +586,14 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
 
     public void dispose() {
         setSurfaceTextureListener(null);
-        _camera.stopPreview();
         _orientationListener.disable();
+        _captureQueue.cancel();
+        CameraThread.post(new Runnable() {
+            public void run() {
+                stopFrameStream();
+                _camera.stopPreview();
+            }
+        });
     }
 
     static Size getLargestSize(final List<Size> sizes) {
@@ -487,8 +647,7 @@ public class CameraImpl extends TextureView implements TextureView.SurfaceTextur
 
     // Logic from https://developer.android.com/reference/android/hardware/Camera.html#setDisplayOrientation(int)
     int getPreviewRotation() {
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(_cameraId, info);
+        Camera.CameraInfo info = CameraThread.getCameraInfo(_cameraId);
         int degrees = getDisplayRotationDegrees();
         int result;
         if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
@@ -0,0 +1,144 @@
+package com.fuse.controls.cameraview;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Size;
+import android.util.SparseArray;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Cached Camera.Parameters with batched writes.
+
+    Every getParameters()/setParameters() flattens the whole parameter set to a string and sends it
+    through the camera service. CameraParameters reads the parameters once per open camera, lets
+    callers change the cached copy inside begin()/commit() and writes it back once, when the
+    outermost commit() is reached and something actually changed. What a camera supports never
+    changes, so that is read once per camera id and kept in Capabilities.
+*/
+final class CameraParameters {
+
+    static final class Capabilities {
+        final List<Size> pictureSizes;
+        final List<Size> previewSizes;
+        final List<Size> videoSizes;
+        final List<String> focusModes;
+        final List<String> flashModes;
+        final int maxNumMeteringAreas;
+        final int maxNumFocusAreas;
+        final int minExposureCompensation;
+        final int maxExposureCompensation;
+        final boolean autoExposureLockSupported;
+        final boolean autoWhiteBalanceLockSupported;
+
+        Capabilities(Camera.Parameters parameters) {
+            pictureSizes = unmodifiable(parameters.getSupportedPictureSizes());
+            previewSizes = unmodifiable(parameters.getSupportedPreviewSizes());
+            // Null when video can only be recorded at preview sizes
+            List<Size> supportedVideoSizes = parameters.getSupportedVideoSizes();
+            videoSizes = supportedVideoSizes != null ? unmodifiable(supportedVideoSizes) : previewSizes;
+            focusModes = unmodifiable(parameters.getSupportedFocusModes());
+            flashModes = unmodifiable(parameters.getSupportedFlashModes());
+            maxNumMeteringAreas = parameters.getMaxNumMeteringAreas();
+            maxNumFocusAreas = parameters.getMaxNumFocusAreas();
+            minExposureCompensation = parameters.getMinExposureCompensation();
+            maxExposureCompensation = parameters.getMaxExposureCompensation();
+            autoExposureLockSupported = parameters.isAutoExposureLockSupported();
+            autoWhiteBalanceLockSupported = parameters.isAutoWhiteBalanceLockSupported();
+        }
+
+        boolean supportsFocusMode(String mode) {
+            return focusModes.contains(mode);
+        }
+
+        boolean supportsFlashMode(String mode) {
+            return flashModes.contains(mode);
+        }
+
+        // The framework returns null rather than an empty list for unsupported features
+        static <T> List<T> unmodifiable(List<T> list) {
+            return list == null ? Collections.<T>emptyList() : Collections.unmodifiableList(list);
+        }
+    }
+
+    static final SparseArray<Capabilities> _capabilities = new SparseArray<Capabilities>();
+
+    static synchronized Capabilities getCapabilities(int cameraId, Camera.Parameters parameters) {
+        Capabilities capabilities = _capabilities.get(cameraId);
+        if (capabilities == null) {
+            capabilities = new Capabilities(parameters);
+            _capabilities.put(cameraId, capabilities);
+        }
+        return capabilities;
+    }
+
+    final Camera _camera;
+    final Capabilities _supported;
+    Camera.Parameters _parameters;
+    // Flattened form of what the camera was last given, to skip writes that change nothing
+    String _committed;
+    int _depth = 0;
+
+    CameraParameters(Camera camera, int cameraId) {
+        _camera = camera;
+        _parameters = camera.getParameters();
+        _committed = _parameters.flatten();
+        _supported = getCapabilities(cameraId, _parameters);
+    }
+
+    Capabilities supported() {
+        return _supported;
+    }
+
+    // The cached parameters, for reading. Use begin()/commit() to change them.
+    Camera.Parameters get() {
+        return _parameters;
+    }
+
+    /*
+        Starts a transaction and returns the parameters to change. Transactions nest, so a method
+        that commits its own changes can be called from inside a larger transaction without
+        causing a write of its own.
+    */
+    Camera.Parameters begin() {
+        _depth++;
+        return _parameters;
+    }
+
+    /*
+        Ends a transaction, writing the parameters to the camera if this was the outermost one and
+        they changed. If the camera rejects them, the cache is reloaded from the camera so it keeps
+        matching what the camera actually uses, and the exception is rethrown.
+    */
+    void commit() {
+        if (_depth == 0)
+            throw new IllegalStateException("commit() without begin()");
+        if (--_depth > 0)
+            return;
+
+        String flattened = _parameters.flatten();
+        if (flattened.equals(_committed))
+            return;
+        try {
+            _camera.setParameters(_parameters);
+            _committed = flattened;
+        } catch (RuntimeException e) {
+            reload();
+            throw e;
+        }
+    }
+
+    // Replaces the cache with what the camera currently uses, discarding uncommitted changes
+    void reload() {
+        _parameters = _camera.getParameters();
+        _committed = _parameters.flatten();
+    }
+
+    String flatten() {
+        return _parameters.flatten();
+    }
+
+    void unflatten(String flattened) {
+        begin().unflatten(flattened);
+        commit();
+    }
+}
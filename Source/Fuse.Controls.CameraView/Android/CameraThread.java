@@ -0,0 +1,249 @@
+package com.fuse.controls.cameraview;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+    The thread that owns every android.hardware.Camera call.
+
+    Opening a camera, changing its parameters and starting the preview all block for tens to
+    hundreds of milliseconds, so none of it runs on the UI thread. Cameras are opened here, which
+    also makes Camera deliver its autofocus and picture callbacks here; results meant for Uno are
+    posted back to the UI thread. Camera work is serialized on this one thread, so releasing one
+    camera always finishes before the next is opened.
+
+    A camera can be pre-opened before a CameraView asks for it, so opening overlaps with whatever
+    the UI is doing in the meantime. A pre-opened camera nobody claims is released again after
+    PREOPEN_TIMEOUT_MS.
+*/
+public final class CameraThread {
+
+    static final String TAG = "CameraThread";
+
+    static final long PREOPEN_TIMEOUT_MS = 5000;
+
+    public interface OpenCallback {
+        void onOpened(OpenCamera camera);
+        void onError(String message);
+    }
+
+    /*
+        When each startup phase of a camera was reached, in SystemClock.elapsedRealtime() ms.
+        Phases a pre-opened camera finished before it was requested count as taking no time.
+    */
+    static final class StartupTimings {
+        static final int REQUESTED = 0;
+        static final int OPENED = 1;
+        static final int CONFIGURED = 2;
+        static final int SURFACE_AVAILABLE = 3;
+        static final int PREVIEW_STARTED = 4;
+        static final int FIRST_FRAME = 5;
+
+        final long[] _times = new long[FIRST_FRAME + 1];
+
+        synchronized void mark(int phase) {
+            mark(phase, SystemClock.elapsedRealtime());
+        }
+
+        synchronized void mark(int phase, long time) {
+            _times[phase] = time;
+        }
+
+        synchronized boolean isMarked(int phase) {
+            return _times[phase] != 0;
+        }
+
+        // Milliseconds from the request to each phase, -1 for phases not reached yet
+        synchronized int[] toArray() {
+            int[] result = new int[_times.length];
+            for (int i = 0; i < _times.length; i++)
+                result[i] = _times[i] == 0 ? -1 : (int)Math.max(0, _times[i] - _times[REQUESTED]);
+            return result;
+        }
+    }
+
+    // A camera that has been opened and configured on the camera thread
+    public static final class OpenCamera {
+        final int cameraId;
+        final Camera camera;
+        final CameraParameters parameters;
+        final boolean autoFocus;
+        final StartupTimings timings;
+
+        OpenCamera(int cameraId, Camera camera, CameraParameters parameters, boolean autoFocus, StartupTimings timings) {
+            this.cameraId = cameraId;
+            this.camera = camera;
+            this.parameters = parameters;
+            this.autoFocus = autoFocus;
+            this.timings = timings;
+        }
+
+        static OpenCamera open(int cameraId, StartupTimings timings) {
+            Camera camera = Camera.open(cameraId);
+            timings.mark(StartupTimings.OPENED);
+            try {
+                CameraParameters parameters = new CameraParameters(camera, cameraId);
+                boolean autoFocus = CameraImpl.initFocus(parameters);
+                timings.mark(StartupTimings.CONFIGURED);
+                return new OpenCamera(cameraId, camera, parameters, autoFocus, timings);
+            } catch (RuntimeException e) {
+                camera.release();
+                throw e;
+            }
+        }
+    }
+
+    static Handler _handler;
+    static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+
+    static synchronized Handler handler() {
+        if (_handler == null) {
+            HandlerThread thread = new HandlerThread("FuseCamera");
+            thread.start();
+            _handler = new Handler(thread.getLooper());
+        }
+        return _handler;
+    }
+
+    static boolean isCurrent() {
+        return Looper.myLooper() == handler().getLooper();
+    }
+
+    static void post(Runnable runnable) {
+        handler().post(runnable);
+    }
+
+    static void postToMain(Runnable runnable) {
+        _mainHandler.post(runnable);
+    }
+
+    // Runs callable on the camera thread and waits for its result, for the few callers that can't continue without it
+    static <T> T call(Callable<T> callable) throws Exception {
+        if (isCurrent())
+            return callable.call();
+        FutureTask<T> task = new FutureTask<T>(callable);
+        post(task);
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw e;
+        }
+    }
+
+    static void runAndWait(final Runnable runnable) {
+        try {
+            call(new Callable<Void>() {
+                public Void call() {
+                    runnable.run();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // CameraInfo never changes for a camera id, and getCameraInfo is a call into the camera service
+    static final SparseArray<Camera.CameraInfo> _cameraInfos = new SparseArray<Camera.CameraInfo>();
+
+    public static synchronized Camera.CameraInfo getCameraInfo(int cameraId) {
+        Camera.CameraInfo info = _cameraInfos.get(cameraId);
+        if (info == null) {
+            info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+            _cameraInfos.put(cameraId, info);
+        }
+        return info;
+    }
+
+    // Only touched on the camera thread
+    static OpenCamera _preopened;
+
+    static final Runnable _releasePreopened = new Runnable() {
+        public void run() {
+            if (_preopened != null) {
+                Log.d(TAG, "Releasing unclaimed pre-opened camera " + _preopened.cameraId);
+                _preopened.camera.release();
+                _preopened = null;
+            }
+        }
+    };
+
+    public static void preopen(final int cameraId) {
+        post(new Runnable() {
+            public void run() {
+                handler().removeCallbacks(_releasePreopened);
+                if (_preopened == null || _preopened.cameraId != cameraId) {
+                    _releasePreopened.run();
+                    try {
+                        _preopened = OpenCamera.open(cameraId, new StartupTimings());
+                    } catch (Exception e) {
+                        Log.d(TAG, "Could not pre-open camera " + cameraId + ": " + e.getMessage());
+                        return;
+                    }
+                }
+                handler().postDelayed(_releasePreopened, PREOPEN_TIMEOUT_MS);
+            }
+        });
+    }
+
+    // Opens cameraId, or claims it if it has been pre-opened, and calls back on the UI thread
+    public static void open(final int cameraId, final OpenCallback callback) {
+        final long requested = SystemClock.elapsedRealtime();
+        post(new Runnable() {
+            public void run() {
+                handler().removeCallbacks(_releasePreopened);
+                OpenCamera camera = null;
+                if (_preopened != null && _preopened.cameraId == cameraId) {
+                    camera = _preopened;
+                    _preopened = null;
+                } else {
+                    _releasePreopened.run();
+                }
+                try {
+                    if (camera == null) {
+                        StartupTimings timings = new StartupTimings();
+                        timings.mark(StartupTimings.REQUESTED, requested);
+                        camera = OpenCamera.open(cameraId, timings);
+                    } else {
+                        camera.timings.mark(StartupTimings.REQUESTED, requested);
+                    }
+                } catch (final Exception e) {
+                    postToMain(new Runnable() {
+                        public void run() {
+                            callback.onError(e.getMessage());
+                        }
+                    });
+                    return;
+                }
+                final OpenCamera opened = camera;
+                postToMain(new Runnable() {
+                    public void run() {
+                        callback.onOpened(opened);
+                    }
+                });
+            }
+        });
+    }
+
+    public static void release(final OpenCamera camera) {
+        post(new Runnable() {
+            public void run() {
+                camera.camera.release();
+            }
+        });
+    }
+}
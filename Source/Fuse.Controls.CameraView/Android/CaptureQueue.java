@@ -0,0 +1,195 @@
+package com.fuse.controls.cameraview;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+import com.fuse.camera.ImageStorageTools;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+    Takes pictures back to back, queueing requests made while a capture is in flight.
+
+    Only one picture can be taken at a time, so requests wait their turn on CameraThread and the
+    next one starts as soon as the camera has delivered the previous JPEG. Pictures meant for a
+    file are written by a background writer straight from the camera's buffer, so the next shot
+    doesn't wait for the disk and the bytes never cross into Uno. Continuous focus is only resumed
+    once the queue is empty, and requests can skip focusing altogether, for bursts where focus was
+    already set or locked.
+*/
+final class CaptureQueue {
+
+    static final class Request {
+        // Exactly one of these is set: the JPEG is either handed over as bytes or written to a file
+        final IPictureCallback pictureCallback;
+        final ICaptureCallback captureCallback;
+        final boolean skipFocus;
+        final long requested = SystemClock.elapsedRealtime();
+        long shutter;
+
+        Request(IPictureCallback pictureCallback, ICaptureCallback captureCallback, boolean skipFocus) {
+            this.pictureCallback = pictureCallback;
+            this.captureCallback = captureCallback;
+            this.skipFocus = skipFocus;
+        }
+
+        void onError(final Exception e) {
+            CameraThread.postToMain(new Runnable() {
+                public void run() {
+                    if (pictureCallback != null)
+                        pictureCallback.onError(e);
+                    else
+                        captureCallback.onError(e.getMessage());
+                }
+            });
+        }
+    }
+
+    static ExecutorService _writer;
+
+    /*
+        Captures go in a cache directory of their own rather than ImageTools' scratch images, which
+        are trimmed to the cache size: a burst could otherwise evict its own earlier shots before
+        they have been used. They stay until the app deletes them or the system clears its cache.
+    */
+    static File createCaptureFile() throws Exception {
+        File dir = new File(com.fuse.Activity.getRootActivity().getExternalCacheDir(), "captures");
+        if (!dir.exists() && !dir.mkdirs())
+            throw new Exception("Failed to create directory for captures: " + dir);
+        return new File(dir, ImageStorageTools.getImageFileName("jpeg"));
+    }
+
+    // One writer for all cameras, so shots are written in the order they were taken
+    static synchronized ExecutorService writer() {
+        if (_writer == null) {
+            _writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FuseCaptureWriter");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+        return _writer;
+    }
+
+    final CameraImpl _cameraImpl;
+    final Camera _camera;
+    // Only touched on CameraThread
+    final ArrayDeque<Request> _queue = new ArrayDeque<Request>();
+    boolean _capturing = false;
+
+    CaptureQueue(CameraImpl cameraImpl, Camera camera) {
+        _cameraImpl = cameraImpl;
+        _camera = camera;
+    }
+
+    void enqueue(final Request request) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                _queue.add(request);
+                if (!_capturing)
+                    next();
+            }
+        });
+    }
+
+    // Fails everything still waiting, for when the camera goes away
+    void cancel() {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                Request request;
+                while ((request = _queue.poll()) != null)
+                    request.onError(new Exception("Camera closed before the picture was taken"));
+            }
+        });
+    }
+
+    void next() {
+        final Request request = _queue.poll();
+        _capturing = request != null;
+        if (request == null)
+            return;
+
+        try {
+            _cameraImpl.updateRotation();
+            if (_cameraImpl._autoFocus && !request.skipFocus) {
+                _camera.autoFocus(new Camera.AutoFocusCallback() {
+                    public void onAutoFocus(boolean success, Camera camera) {
+                        shoot(request);
+                    }
+                });
+            } else {
+                shoot(request);
+            }
+        } catch (Exception e) {
+            request.onError(e);
+            next();
+        }
+    }
+
+    void shoot(final Request request) {
+        try {
+            _camera.takePicture(
+                new Camera.ShutterCallback() {
+                    public void onShutter() {
+                        request.shutter = SystemClock.elapsedRealtime();
+                    }
+                },
+                null,
+                null,
+                new Camera.PictureCallback() {
+                    public void onPictureTaken(byte[] data, Camera camera) {
+                        if (request.shutter == 0)
+                            request.shutter = SystemClock.elapsedRealtime();
+                        deliver(request, data);
+                        camera.startPreview();
+                        if (_queue.isEmpty())
+                            _cameraImpl.resumeFocus();
+                        next();
+                    }
+                });
+        } catch (Exception e) {
+            request.onError(e);
+            next();
+        }
+    }
+
+    void deliver(final Request request, final byte[] data) {
+        if (request.pictureCallback != null) {
+            CameraThread.postToMain(new Runnable() {
+                public void run() {
+                    request.pictureCallback.onPictureTaken(data);
+                }
+            });
+            return;
+        }
+
+        writer().execute(new Runnable() {
+            public void run() {
+                try {
+                    final String filePath = createCaptureFile().getAbsolutePath();
+                    FileOutputStream out = new FileOutputStream(filePath);
+                    try {
+                        out.write(data);
+                    } finally {
+                        out.close();
+                    }
+                    long written = SystemClock.elapsedRealtime();
+                    final int queueMs = (int)(request.shutter - request.requested);
+                    final int shutterToFileMs = (int)(written - request.shutter);
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            request.captureCallback.onCaptured(filePath, queueMs, shutterToFileMs);
+                        }
+                    });
+                } catch (Exception e) {
+                    request.onError(e);
+                }
+            }
+        });
+    }
+}
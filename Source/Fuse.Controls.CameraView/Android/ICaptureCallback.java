@@ -0,0 +1,7 @@
+package com.fuse.controls.cameraview;
+
+public interface ICaptureCallback {
+    // queueMs is from the request to the shutter, shutterToFileMs from the shutter until the file was written
+    void onCaptured(String filePath, int queueMs, int shutterToFileMs);
+    void onError(String message);
+}
@@ -0,0 +1,6 @@
+package com.fuse.controls.cameraview;
+
+public interface IPreviewFrameConsumer {
+    // Called on the preview frame thread. frame and its data are reused once this returns.
+    void onPreviewFrame(PreviewFrame frame);
+}
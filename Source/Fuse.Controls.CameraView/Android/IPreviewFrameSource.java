@@ -0,0 +1,12 @@
+package com.fuse.controls.cameraview;
+
+/*
+    Where a PreviewFrameStream gets its frames from. A source writes each frame into one of the
+    buffers it has been given with addBuffer and passes it to PreviewFrameStream.onFrame, after
+    which the buffer is not its own until it is given back with addBuffer.
+*/
+public interface IPreviewFrameSource {
+    void start(PreviewFrameStream stream);
+    void addBuffer(byte[] buffer);
+    void stop();
+}
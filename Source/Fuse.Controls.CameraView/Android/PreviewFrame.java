@@ -0,0 +1,21 @@
+package com.fuse.controls.cameraview;
+
+/*
+    One preview frame, as handed to an IPreviewFrameConsumer. Frames and their data are owned by
+    the PreviewFrameStream and reused, so copy out anything needed after onPreviewFrame returns.
+*/
+public final class PreviewFrame {
+    // Image data in format, an android.graphics.ImageFormat constant (NV21 for camera preview)
+    public final byte[] data;
+    public int width;
+    public int height;
+    public int format;
+    // SystemClock.elapsedRealtimeNanos() when the frame was received
+    public long timestampNanos;
+    // Frames received before this one, including those that were dropped or skipped
+    public long sequence;
+
+    PreviewFrame(byte[] data) {
+        this.data = data;
+    }
+}
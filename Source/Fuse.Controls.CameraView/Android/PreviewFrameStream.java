@@ -0,0 +1,236 @@
+package com.fuse.controls.cameraview;
+
+import android.graphics.ImageFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.util.concurrent.Executor;
+
+/*
+    Delivers preview frames from an IPreviewFrameSource to an IPreviewFrameConsumer on a background
+    thread, without allocating per frame.
+
+    A fixed ring of buffers is allocated when the stream starts: one being filled by the source, one
+    waiting for the consumer and one being consumed. When the consumer is slow, a new frame replaces
+    the one still waiting, so the consumer always gets the latest frame and the source is never
+    starved of buffers. Frames arriving sooner than the frame-rate cap allows are handed straight
+    back to the source.
+
+    Frames are delivered through an Executor, by default one shared background thread. Apart from
+    that default and logging consumer failures, no Android classes are used at run time for YUV
+    formats, so given an Executor of its own the stream also runs off the device.
+*/
+public final class PreviewFrameStream {
+
+    static final int BUFFER_COUNT = 3;
+
+    static final class Slot {
+        final PreviewFrame frame;
+        final int generation;
+
+        Slot(PreviewFrame frame, int generation) {
+            this.frame = frame;
+            this.generation = generation;
+        }
+    }
+
+    static Executor _defaultDelivery;
+
+    // All consumers share one thread, so frames never pile up behind each other's work
+    static synchronized Executor defaultDelivery() {
+        if (_defaultDelivery == null) {
+            HandlerThread thread = new HandlerThread("FusePreviewFrames");
+            thread.start();
+            final Handler handler = new Handler(thread.getLooper());
+            _defaultDelivery = new Executor() {
+                public void execute(Runnable runnable) {
+                    handler.post(runnable);
+                }
+            };
+        }
+        return _defaultDelivery;
+    }
+
+    final Object _lock = new Object();
+    final Executor _delivery;
+    volatile IPreviewFrameConsumer _consumer;
+    volatile long _minIntervalNanos;
+
+    IPreviewFrameSource _source;
+    Slot[] _slots = new Slot[0];
+    // Bumped on every start, so buffers from a previous size are not given back to the source
+    int _generation;
+    long _lastAcceptedNanos;
+    Slot _pending;
+    boolean _scheduled;
+
+    long _received;
+    long _delivered;
+    long _dropped;
+    long _skipped;
+
+    final Runnable _drain = new Runnable() {
+        public void run() {
+            while (true) {
+                Slot slot;
+                synchronized (_lock) {
+                    slot = _pending;
+                    _pending = null;
+                    if (slot == null) {
+                        _scheduled = false;
+                        return;
+                    }
+                }
+                IPreviewFrameConsumer consumer = _consumer;
+                if (consumer != null) {
+                    try {
+                        consumer.onPreviewFrame(slot.frame);
+                    } catch (RuntimeException e) {
+                        android.util.Log.e("PreviewFrameStream", "Preview frame consumer failed", e);
+                    }
+                    synchronized (_lock) {
+                        _delivered++;
+                    }
+                }
+                recycle(slot);
+            }
+        }
+    };
+
+    public PreviewFrameStream(IPreviewFrameConsumer consumer) {
+        this(consumer, defaultDelivery());
+    }
+
+    // Runs consumers through delivery, which must run one task at a time
+    public PreviewFrameStream(IPreviewFrameConsumer consumer, Executor delivery) {
+        _consumer = consumer;
+        _delivery = delivery;
+    }
+
+    public void setConsumer(IPreviewFrameConsumer consumer) {
+        _consumer = consumer;
+    }
+
+    // At most maxFps frames per second are delivered, 0 for no limit
+    public void setMaxFps(int maxFps) {
+        _minIntervalNanos = maxFps > 0 ? 1000000000L / maxFps : 0;
+    }
+
+    /*
+        Starts taking frames of width x height in format from source, replacing any previous source.
+        This is the only place buffers are allocated.
+    */
+    public void start(IPreviewFrameSource source, int width, int height, int format) {
+        stop();
+        int bitsPerPixel = getBitsPerPixel(format);
+        if (bitsPerPixel <= 0)
+            throw new IllegalArgumentException("Unsupported preview format: " + format);
+        int size = width * height * bitsPerPixel / 8;
+
+        Slot[] slots = new Slot[BUFFER_COUNT];
+        synchronized (_lock) {
+            _generation++;
+            for (int i = 0; i < slots.length; i++) {
+                PreviewFrame frame = new PreviewFrame(new byte[size]);
+                frame.width = width;
+                frame.height = height;
+                frame.format = format;
+                slots[i] = new Slot(frame, _generation);
+            }
+            _slots = slots;
+            _source = source;
+            _lastAcceptedNanos = 0;
+        }
+        source.start(this);
+        for (Slot slot : slots)
+            source.addBuffer(slot.frame.data);
+    }
+
+    public void stop() {
+        IPreviewFrameSource source;
+        synchronized (_lock) {
+            source = _source;
+            _source = null;
+            _slots = new Slot[0];
+            _pending = null;
+        }
+        if (source != null)
+            source.stop();
+    }
+
+    /*
+        Called by the source with a buffer it was given and has filled. Runs on the source's thread
+        and doesn't block on the consumer.
+    */
+    public void onFrame(byte[] data, long timestampNanos) {
+        Slot recycled = null;
+        boolean schedule = false;
+        synchronized (_lock) {
+            Slot slot = find(data);
+            if (slot == null)
+                return;
+
+            slot.frame.timestampNanos = timestampNanos;
+            slot.frame.sequence = _received++;
+
+            long minInterval = _minIntervalNanos;
+            if (minInterval > 0 && _lastAcceptedNanos != 0 && timestampNanos - _lastAcceptedNanos < minInterval) {
+                _skipped++;
+                recycled = slot;
+            } else {
+                _lastAcceptedNanos = timestampNanos;
+                if (_pending != null) {
+                    _dropped++;
+                    recycled = _pending;
+                }
+                _pending = slot;
+                if (!_scheduled) {
+                    _scheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+        if (recycled != null)
+            recycle(recycled);
+        if (schedule)
+            _delivery.execute(_drain);
+    }
+
+    // The camera's preview formats are answered here, so they don't need the Android framework
+    static int getBitsPerPixel(int format) {
+        switch (format) {
+            case ImageFormat.NV21:
+            case ImageFormat.YV12:
+            case ImageFormat.YUV_420_888:
+                return 12;
+            case ImageFormat.YUY2:
+            case ImageFormat.NV16:
+                return 16;
+        }
+        return ImageFormat.getBitsPerPixel(format);
+    }
+
+    // Identity lookup over a handful of slots, to avoid a map and its boxing
+    Slot find(byte[] data) {
+        for (Slot slot : _slots) {
+            if (slot.frame.data == data)
+                return slot;
+        }
+        return null;
+    }
+
+    void recycle(Slot slot) {
+        IPreviewFrameSource source;
+        synchronized (_lock) {
+            source = slot.generation == _generation ? _source : null;
+        }
+        if (source != null)
+            source.addBuffer(slot.frame.data);
+    }
+
+    // received, delivered, dropped because the consumer was busy, skipped by the frame-rate cap
+    public long[] getStats() {
+        synchronized (_lock) {
+            return new long[] { _received, _delivered, _dropped, _skipped };
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.fuse.controls.cameraview;
+
+import android.media.CamcorderProfile;
+import android.hardware.Camera.Size;
+import java.util.List;
+
+/*
+    How a RecordingSession records: a CamcorderProfile quality level, optionally overridden
+    with a specific size, bitrate and frame rate, and how large or long each output segment may
+    get before recording continues in the next file. Zero means "not set" throughout.
+*/
+public final class RecordingOptions {
+
+    public final String quality;
+    public final int width;
+    public final int height;
+    public final int videoBitRate;
+    public final int frameRate;
+    public final long maxSegmentDurationMs;
+    public final long maxSegmentSizeBytes;
+
+    public RecordingOptions(String quality, int width, int height, int videoBitRate, int frameRate, long maxSegmentDurationMs, long maxSegmentSizeBytes) {
+        this.quality = quality;
+        this.width = width;
+        this.height = height;
+        this.videoBitRate = videoBitRate;
+        this.frameRate = frameRate;
+        this.maxSegmentDurationMs = maxSegmentDurationMs;
+        this.maxSegmentSizeBytes = maxSegmentSizeBytes;
+    }
+
+    static final RecordingOptions DEFAULT = new RecordingOptions(null, 0, 0, 0, 0, 0, 0);
+
+    boolean isSegmented() {
+        return maxSegmentDurationMs > 0 || maxSegmentSizeBytes > 0;
+    }
+
+    static int getQualityLevel(String quality) throws Exception {
+        if (quality == null || quality.isEmpty() || quality.equals("high"))
+            return CamcorderProfile.QUALITY_HIGH;
+        if (quality.equals("low"))
+            return CamcorderProfile.QUALITY_LOW;
+        if (quality.equals("480p"))
+            return CamcorderProfile.QUALITY_480P;
+        if (quality.equals("720p"))
+            return CamcorderProfile.QUALITY_720P;
+        if (quality.equals("1080p"))
+            return CamcorderProfile.QUALITY_1080P;
+        if (quality.equals("2160p"))
+            return CamcorderProfile.QUALITY_2160P;
+        throw new Exception("Unknown recording quality: " + quality);
+    }
+
+    /*
+        The profile to record with. Quality levels the camera doesn't have fall back to
+        QUALITY_HIGH, and a requested size is snapped to the closest size the camera can record.
+    */
+    CamcorderProfile getProfile(int cameraId, List<Size> videoSizes) throws Exception {
+        int level = getQualityLevel(quality);
+        if (!CamcorderProfile.hasProfile(cameraId, level))
+            level = CamcorderProfile.QUALITY_HIGH;
+        CamcorderProfile profile = CamcorderProfile.get(cameraId, level);
+
+        if (width > 0 && height > 0) {
+            Size size = CameraImpl.getOptimalSize(videoSizes, width, height, width, height);
+            if (size != null) {
+                profile.videoFrameWidth = size.width;
+                profile.videoFrameHeight = size.height;
+            }
+        }
+        if (videoBitRate > 0)
+            profile.videoBitRate = videoBitRate;
+        if (frameRate > 0)
+            profile.videoFrameRate = frameRate;
+        return profile;
+    }
+}
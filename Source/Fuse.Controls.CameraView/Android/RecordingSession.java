@@ -2,49 +2,231 @@ package com.fuse.controls.cameraview;
 
 import android.media.MediaRecorder;
 import android.hardware.Camera;
-import java.util.UUID;
+import android.os.Build;
+import android.util.Log;
 import java.io.File;
 import android.os.Environment;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import android.media.CamcorderProfile;
 
-public class RecordingSession {
+/*
+    Records video from an unlocked camera, on CameraThread.
+
+    With a maximum segment size or duration, recording rolls over into numbered files
+    (VID_<time>_001.mp4, VID_<time>_002.mp4, ...), so finished segments can be picked up while
+    recording continues. From Android 8 the next file is handed to MediaRecorder before the current
+    one is full and recording continues without a gap; a maximum duration is turned into a size
+    from the profile's bitrates for this, so segments are only approximately that long. On older
+    versions MediaRecorder stops at the limit and is restarted on the next file, leaving a short gap.
+    If that restart fails, recording ends there: the camera is given back at once and stop()
+    reports the failure, while the segments recorded until then are kept.
+*/
+public class RecordingSession implements MediaRecorder.OnInfoListener {
+
+    static final String TAG = "RecordingSession";
 
     Camera _camera;
     MediaRecorder _mediaRecorder;
     String _outputFilePath;
 
+    final int _orientationHintDegrees;
+    final CamcorderProfile _profile;
+    final RecordingOptions _options;
+    final long _segmentSizeBytes;
+    final File _storageDir;
+    final String _baseName;
+    int _segmentCount = 0;
+    String _nextOutputFilePath;
+    final List<String> _segments = new ArrayList<String>();
+    final List<String> _finishedSegments = new ArrayList<String>();
+    // Why recording ended before stop() was called, null while it hasn't
+    String _failure;
+    boolean _released;
+
     public RecordingSession(Camera camera, int orientationHintDegrees) throws Exception {
+        this(camera, orientationHintDegrees, CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH), RecordingOptions.DEFAULT);
+    }
+
+    public RecordingSession(Camera camera, int orientationHintDegrees, CamcorderProfile profile, RecordingOptions options) throws Exception {
         _camera = camera;
+        _orientationHintDegrees = orientationHintDegrees;
+        _profile = profile;
+        _options = options;
+        _segmentSizeBytes = getSegmentSizeBytes(profile, options);
+        _storageDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        _baseName = "VID_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
         _outputFilePath = makeOutputFilePath();
         _mediaRecorder = new MediaRecorder();
-        _mediaRecorder.setCamera(camera);
+        startRecorder();
+    }
+
+    static boolean canContinueInNextFile() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    // The size limit to give MediaRecorder, 0 for none
+    static long getSegmentSizeBytes(CamcorderProfile profile, RecordingOptions options) {
+        long size = options.maxSegmentSizeBytes;
+        if (options.maxSegmentDurationMs > 0 && canContinueInNextFile()) {
+            long bitRate = (long)profile.videoBitRate + profile.audioBitRate;
+            long durationSize = bitRate * options.maxSegmentDurationMs / 8000;
+            size = size > 0 ? Math.min(size, durationSize) : durationSize;
+        }
+        return size;
+    }
+
+    String makeOutputFilePath() {
+        String name = _options.isSegmented()
+            ? String.format(Locale.US, "%s_%03d", _baseName, ++_segmentCount)
+            : _baseName;
+        File videoFile = new File(_storageDir.getPath() + File.separator + name + ".mp4");
+        return videoFile.getAbsolutePath();
+    }
+
+    void startRecorder() throws Exception {
+        _mediaRecorder.setCamera(_camera);
         _mediaRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
         _mediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
-        _mediaRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH));
+        _mediaRecorder.setProfile(_profile);
         _mediaRecorder.setOutputFile(_outputFilePath);
-        _mediaRecorder.setOrientationHint(orientationHintDegrees);
+        _mediaRecorder.setOrientationHint(_orientationHintDegrees);
+        if (_segmentSizeBytes > 0)
+            _mediaRecorder.setMaxFileSize(_segmentSizeBytes);
+        if (_options.maxSegmentDurationMs > 0 && !canContinueInNextFile())
+            _mediaRecorder.setMaxDuration((int)Math.min(Integer.MAX_VALUE, _options.maxSegmentDurationMs));
+        if (_options.isSegmented())
+            _mediaRecorder.setOnInfoListener(this);
         _mediaRecorder.prepare();
         _mediaRecorder.start();
+        synchronized (_segments) {
+            _segments.add(_outputFilePath);
+        }
     }
 
-    String makeOutputFilePath() {
-        File storageDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        File videoFile = new File(storageDir.getPath() + File.separator + "VID_" + timeStamp + ".mp4");
-        return videoFile.getAbsolutePath();
+    // Delivered on CameraThread, where the recorder was created
+    public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
+        if (canContinueInNextFile()) {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+                continueInNextFile();
+                return;
+            }
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+                finishSegment(_outputFilePath);
+                _outputFilePath = _nextOutputFilePath;
+                _nextOutputFilePath = null;
+                synchronized (_segments) {
+                    _segments.add(_outputFilePath);
+                }
+                return;
+            }
+        }
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+            || what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
+            restartInNextFile();
+        }
+    }
+
+    void continueInNextFile() {
+        String nextOutputFilePath = makeOutputFilePath();
+        try {
+            _mediaRecorder.setNextOutputFile(new File(nextOutputFilePath));
+            _nextOutputFilePath = nextOutputFilePath;
+        } catch (Exception e) {
+            // Recording stops at the limit instead, and is restarted from onInfo
+            Log.e(TAG, "Could not continue recording in " + nextOutputFilePath + ": " + e.getMessage());
+            _segmentCount--;
+        }
     }
 
-    public void stop(IStopRecordingSession stopRecordingSession) {
+    void restartInNextFile() {
+        String nextOutputFilePath = null;
         try {
             _mediaRecorder.stop();
             _mediaRecorder.reset();
-            _mediaRecorder.release();
-            _camera.lock();
-            stopRecordingSession.onSuccess(_outputFilePath);
-        } catch(Exception e) {
-            stopRecordingSession.onException(e.getMessage());
+            finishSegment(_outputFilePath);
+            nextOutputFilePath = makeOutputFilePath();
+            _outputFilePath = nextOutputFilePath;
+            startRecorder();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not continue recording in a new segment: " + e.getMessage());
+            _failure = "Recording ended early, as it could not continue in a new segment: " + e.getMessage();
+            // The new segment never started, so anything written for it is empty
+            if (nextOutputFilePath != null)
+                new File(nextOutputFilePath).delete();
+            try {
+                releaseRecorder();
+            } catch (Exception releaseException) {
+                Log.e(TAG, "Could not give the camera back: " + releaseException.getMessage());
+            }
         }
     }
-}
\ No newline at end of file
+
+    // Frees the recorder and locks the camera again for CameraImpl, once
+    void releaseRecorder() {
+        if (_released)
+            return;
+        _released = true;
+        _mediaRecorder.reset();
+        _mediaRecorder.release();
+        _camera.lock();
+    }
+
+    void finishSegment(String path) {
+        synchronized (_finishedSegments) {
+            _finishedSegments.add(path);
+        }
+    }
+
+    // Segments that are complete and won't be written to again, in recording order
+    public String[] getFinishedSegments() {
+        synchronized (_finishedSegments) {
+            return _finishedSegments.toArray(new String[_finishedSegments.size()]);
+        }
+    }
+
+    // Every segment recorded so far, including the one being recorded, in recording order
+    public String[] getSegments() {
+        synchronized (_segments) {
+            return _segments.toArray(new String[_segments.size()]);
+        }
+    }
+
+    public void stop(final IStopRecordingSession stopRecordingSession) {
+        CameraThread.post(new Runnable() {
+            public void run() {
+                try {
+                    // After a failed restart the recorder is no longer recording and has been released
+                    if (_failure == null) {
+                        try {
+                            _mediaRecorder.stop();
+                        } finally {
+                            releaseRecorder();
+                        }
+                        finishSegment(_outputFilePath);
+                    }
+                    // A next file that was handed over but never started is left empty
+                    if (_nextOutputFilePath != null)
+                        new File(_nextOutputFilePath).delete();
+                    if (_failure != null)
+                        throw new Exception(_failure);
+                    final String outputFilePath = getSegments()[0];
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            stopRecordingSession.onSuccess(outputFilePath);
+                        }
+                    });
+                } catch(final Exception e) {
+                    CameraThread.postToMain(new Runnable() {
+                        public void run() {
+                            stopRecordingSession.onException(e.getMessage());
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
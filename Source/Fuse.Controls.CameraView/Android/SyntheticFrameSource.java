@@ -0,0 +1,105 @@
+package com.fuse.controls.cameraview;
+
+/*
+    An IPreviewFrameSource that produces NV21 frames without a camera: a gradient that moves one
+    pixel per frame, at a fixed rate. For exercising preview frame consumers and PreviewFrameStream
+    without a camera, see Tests/Android/PreviewFrameStreamCheck.java. It uses no Android classes,
+    and stamps frames with System.nanoTime() rather than SystemClock.elapsedRealtimeNanos().
+*/
+public final class SyntheticFrameSource implements IPreviewFrameSource {
+
+    final int _width;
+    final int _height;
+    final long _intervalMs;
+    final byte[][] _buffers;
+    int _bufferCount;
+    PreviewFrameStream _stream;
+    Thread _thread;
+    long _frame;
+
+    public SyntheticFrameSource(int width, int height, int fps) {
+        _width = width;
+        _height = height;
+        _intervalMs = Math.max(1, 1000 / fps);
+        _buffers = new byte[PreviewFrameStream.BUFFER_COUNT][];
+    }
+
+    public synchronized void start(PreviewFrameStream stream) {
+        _stream = stream;
+        _bufferCount = 0;
+        _thread = new Thread("SyntheticFrameSource") {
+            public void run() {
+                produce();
+            }
+        };
+        _thread.start();
+    }
+
+    public synchronized void addBuffer(byte[] buffer) {
+        if (_bufferCount < _buffers.length)
+            _buffers[_bufferCount++] = buffer;
+        notifyAll();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+            _thread = null;
+            _bufferCount = 0;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void produce() {
+        long next = now();
+        while (true) {
+            byte[] buffer;
+            PreviewFrameStream stream;
+            synchronized (this) {
+                // Like a camera, drop the frame when all buffers are taken
+                while (_thread == Thread.currentThread() && (_bufferCount == 0 || now() < next)) {
+                    try {
+                        long wait = next - now();
+                        wait(Math.max(1, _bufferCount == 0 ? _intervalMs : wait));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (_bufferCount == 0 && now() >= next)
+                        next += _intervalMs;
+                }
+                if (_thread != Thread.currentThread())
+                    return;
+                buffer = _buffers[--_bufferCount];
+                _buffers[_bufferCount] = null;
+                stream = _stream;
+            }
+            fill(buffer, _frame++);
+            next += _intervalMs;
+            stream.onFrame(buffer, System.nanoTime());
+        }
+    }
+
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Luma is a diagonal gradient shifted by the frame number, chroma is neutral
+    void fill(byte[] buffer, long frame) {
+        int lumaSize = _width * _height;
+        for (int y = 0; y < _height; y++) {
+            int row = y * _width;
+            for (int x = 0; x < _width; x++)
+                buffer[row + x] = (byte)(x + y + frame);
+        }
+        for (int i = lumaSize; i < buffer.length; i++)
+            buffer[i] = (byte)128;
+    }
+}
@@ -0,0 +1,194 @@
+package com.fuse.controls.cameraview;
+
+import android.graphics.ImageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/*
+    Drives a PreviewFrameStream from test sources and reports what reached the consumer. Uses no
+    Android classes at run time, so it also runs on a desktop JVM against android.jar.
+*/
+public final class PreviewFrameStreamCheck {
+
+    // Runs delivery tasks only when told to, so a test decides when the consumer gets to run
+    static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> _tasks = new ArrayDeque<Runnable>();
+
+        public void execute(Runnable runnable) {
+            _tasks.add(runnable);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = _tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    // Hands out its buffers on request, like a camera that produces a frame whenever a test asks
+    static final class ManualSource implements IPreviewFrameSource {
+        final ArrayDeque<byte[]> _buffers = new ArrayDeque<byte[]>();
+        PreviewFrameStream _stream;
+
+        public void start(PreviewFrameStream stream) {
+            _stream = stream;
+        }
+
+        public void addBuffer(byte[] buffer) {
+            _buffers.add(buffer);
+        }
+
+        public void stop() {
+            _buffers.clear();
+        }
+
+        byte[] take() {
+            return _buffers.poll();
+        }
+
+        void emit(long timestampNanos) {
+            byte[] buffer = take();
+            if (buffer == null)
+                throw new IllegalStateException("No buffer to fill");
+            _stream.onFrame(buffer, timestampNanos);
+        }
+    }
+
+    static final class RecordingConsumer implements IPreviewFrameConsumer {
+        final ArrayList<Long> _sequences = new ArrayList<Long>();
+        int _width;
+        int _height;
+        boolean _gradientMatches = true;
+
+        public synchronized void onPreviewFrame(PreviewFrame frame) {
+            _sequences.add(frame.sequence);
+            _width = frame.width;
+            _height = frame.height;
+            // SyntheticFrameSource shifts its gradient by one per frame, starting at 0 in the corner
+            if (frame.data[0] != (byte)frame.sequence)
+                _gradientMatches = false;
+        }
+
+        synchronized int count() {
+            return _sequences.size();
+        }
+    }
+
+    /*
+        Three frames arrive while the consumer is busy. Returns { received, delivered, dropped,
+        skipped, sequence delivered, buffers back at the source }.
+    */
+    public static long[] latestFrameWins() {
+        ManualExecutor delivery = new ManualExecutor();
+        ManualSource source = new ManualSource();
+        RecordingConsumer consumer = new RecordingConsumer();
+        PreviewFrameStream stream = new PreviewFrameStream(consumer, delivery);
+        stream.start(source, 4, 4, ImageFormat.NV21);
+
+        source.emit(1000000);
+        source.emit(2000000);
+        source.emit(3000000);
+        delivery.runAll();
+
+        long[] stats = stream.getStats();
+        long sequence = consumer.count() == 1 ? consumer._sequences.get(0) : -1;
+        return new long[] { stats[0], stats[1], stats[2], stats[3], sequence, source._buffers.size() };
+    }
+
+    /*
+        Ten frames 20 ms apart with a cap of 10 fps, delivered as they come. Returns { received,
+        delivered, dropped, skipped }.
+    */
+    public static long[] frameRateCap() {
+        ManualExecutor delivery = new ManualExecutor();
+        ManualSource source = new ManualSource();
+        PreviewFrameStream stream = new PreviewFrameStream(new RecordingConsumer(), delivery);
+        stream.setMaxFps(10);
+        stream.start(source, 4, 4, ImageFormat.NV21);
+
+        for (int i = 0; i < 10; i++) {
+            source.emit(1000000L + i * 20000000L);
+            delivery.runAll();
+        }
+        return stream.getStats();
+    }
+
+    /*
+        A buffer of the previous size comes back after a restart. Returns { received, buffers at
+        the source }; the stale buffer must be neither delivered nor handed back.
+    */
+    public static long[] restartIgnoresOldBuffers() {
+        ManualExecutor delivery = new ManualExecutor();
+        ManualSource source = new ManualSource();
+        PreviewFrameStream stream = new PreviewFrameStream(new RecordingConsumer(), delivery);
+        stream.start(source, 4, 4, ImageFormat.NV21);
+        byte[] stale = source.take();
+
+        stream.start(source, 8, 8, ImageFormat.NV21);
+        stream.onFrame(stale, 1000000);
+        delivery.runAll();
+
+        return new long[] { stream.getStats()[0], source._buffers.size() };
+    }
+
+    /*
+        Runs SyntheticFrameSource at fps for durationMs with a consumer taking consumerMs per
+        frame. Returns { received, delivered, dropped, skipped, width, height, 1 if every delivered
+        frame held the expected gradient }.
+    */
+    public static long[] synthetic(int fps, int durationMs, final int consumerMs) throws InterruptedException {
+        final RecordingConsumer recorder = new RecordingConsumer();
+        IPreviewFrameConsumer consumer = new IPreviewFrameConsumer() {
+            public void onPreviewFrame(PreviewFrame frame) {
+                recorder.onPreviewFrame(frame);
+                try {
+                    Thread.sleep(consumerMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        Thread worker = new Thread("PreviewFrameStreamCheck") {
+            public void run() {
+                while (true) {
+                    Runnable task;
+                    synchronized (tasks) {
+                        while (tasks.isEmpty()) {
+                            try {
+                                tasks.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        task = tasks.poll();
+                    }
+                    task.run();
+                }
+            }
+        };
+        worker.start();
+        Executor delivery = new Executor() {
+            public void execute(Runnable runnable) {
+                synchronized (tasks) {
+                    tasks.add(runnable);
+                    tasks.notifyAll();
+                }
+            }
+        };
+
+        PreviewFrameStream stream = new PreviewFrameStream(consumer, delivery);
+        SyntheticFrameSource source = new SyntheticFrameSource(32, 24, fps);
+        stream.start(source, 32, 24, ImageFormat.NV21);
+        Thread.sleep(durationMs);
+        stream.stop();
+        worker.interrupt();
+        worker.join();
+
+        long[] stats = stream.getStats();
+        synchronized (recorder) {
+            return new long[] { stats[0], stats[1], stats[2], stats[3], recorder._width, recorder._height, recorder._gradientMatches ? 1 : 0 };
+        }
+    }
+}
@@ -4,18 +4,18 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.media.ThumbnailUtils;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.util.Base64;
-import android.os.Build;
+import android.util.Base64InputStream;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 
 
 public class Image {
@@ -64,30 +64,7 @@ public class Image {
 	}
 
 	public static BitmapFactory.Options getBitmapOptionsWithoutDecoding(String url){
-		BitmapFactory.Options opts = new BitmapFactory.Options();
-		opts.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(url, opts);
-		return opts;
-	}
-
-	//ref: https://stackoverflow.com/a/32206045/2139770
-	public static int getBitmapSizeWithoutDecoding(String url){
-		BitmapFactory.Options opts = getBitmapOptionsWithoutDecoding(url);
-		return opts.outHeight*opts.outWidth*32/(1024*1024*8);
-	}
-
-	//ref: http://stackoverflow.com/questions/6073744/android-how-to-check-how-much-memory-is-remaining
-	public static double availableMemoryMB(){
-		Runtime runtime = Runtime.getRuntime();
-		long maxHeapSizeInMB=runtime.maxMemory() / 1048576L;
-		long usedMemInMB=(runtime.totalMemory() - runtime.freeMemory()) / 1048576L;
-		return maxHeapSizeInMB - usedMemInMB;
-	}
-
-	static Bitmap rotateImage(Bitmap source, float angle) {
-		Matrix matrix = new Matrix();
-		matrix.postRotate(angle);
-		return Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), matrix, true);
+		return ImageMetadataCache.getBounds(url);
 	}
 
 	//ref: https://developer.android.com/topic/performance/graphics/load-bitmap
@@ -113,76 +90,16 @@ public class Image {
 		return inSampleSize;
 	}
 
+	/*
+		Makes the image report its upright size. The pixels are not touched: the EXIF orientation
+		tag stays in the file, where image loading honours it, and the rotation is folded into the
+		next crop, resize or process of the image (see ImagePipeline) instead of costing a decode
+		and encode of its own.
+	*/
 	public void correctOrientationFromExif()
 	{
-		try{
-			int orientation =
-				new ExifInterface(getFilePath())
-					.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-
-			int angle = 0;
-			switch(orientation) {
-				case ExifInterface.ORIENTATION_ROTATE_90:
-					angle = 90;
-				break;
-				case ExifInterface.ORIENTATION_ROTATE_180:
-					angle = 180;
-				break;
-				case ExifInterface.ORIENTATION_ROTATE_270:
-					angle = 270;
-				break;
-				default:
-					return;
-			}
-
-			Bitmap bmp = getBitmap();
-			try {
-				bmp = rotateImage(bmp, angle);
-			} catch (OutOfMemoryError oome1) {
-
-				/*
-				Attempt to downsize image, else dont do anything to the image.
-				Detect only for less than Oreo cos harder to get OutOfMemory errors on Oreo+
-				~ https://stackoverflow.com/questions/48091403/how-does-bitmap-allocation-work-on-oreo-and-how-to-investigate-their-memory
-				*/
-				if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-
-					// First decode with inJustDecodeBounds=true to check dimensions
-					final BitmapFactory.Options options = new BitmapFactory.Options();
-					options.inJustDecodeBounds = true;
-					BitmapFactory.decodeFile(_fileUri.getPath(), options);
-
-					//determine reduced resolution
-					long imageSize = getBitmapSizeWithoutDecoding(_fileUri.getPath());
-
-					double targetMB = availableMemoryMB() / 2;
-
-					if (targetMB < imageSize) {
-
-						double reductionPerc = targetMB / imageSize;
-						int newWidth = (int) Math.round(options.outWidth * reductionPerc);
-						int newHeight = (int) Math.round(options.outHeight * reductionPerc);
-
-						// Calculate inSampleSize
-						options.inSampleSize = calculateInSampleSize(options, newWidth, newHeight);
-
-						// Decode bitmap with inSampleSize set
-						options.inJustDecodeBounds = false;
-						try {
-							bmp = BitmapFactory.decodeFile(_fileUri.getPath(), options);
-							bmp = rotateImage(bmp, angle);
-						} catch (OutOfMemoryError oome2) {
-							//do nothing to image
-						}
-					}
-				}
-			}
-			ImageStorageTools.saveBitmap(bmp, getFilePath());
-			bmp.recycle();
-		}catch(Exception e){
-			e.printStackTrace();
-		}
-
+		_dims = null;
+		checkDims();
 	}
 
 	public Bitmap getBitmap(){
@@ -208,19 +125,24 @@ public class Image {
 	private void checkDims()
 	{
 		if(_dims!=null) return;
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		Bitmap bmp = BitmapFactory.decodeFile(_fileUri.getPath(), options);
-		_dims = new Pt(options.outWidth, options.outHeight);
+		String path = _fileUri.getPath();
+		BitmapFactory.Options options = getBitmapOptionsWithoutDecoding(path);
+		// Report the size the image is displayed at, which has width and height swapped for rotated photos
+		int rotation = ImagePipeline.getExifRotation(path);
+		if (rotation == 90 || rotation == 270)
+			_dims = new Pt(options.outHeight, options.outWidth);
+		else
+			_dims = new Pt(options.outWidth, options.outHeight);
 	}
 
 	private Image(Uri fileUri) {
 		_fileUri = fileUri;
+		ImageTempStore.claim(fileUri.getPath());
 	}
 
 	private Image() throws Exception
 	{
-		_fileUri = Uri.fromFile(new File(ImageStorageTools.createFilePath(DEFAULT_FORMAT, true)));
+		this(Uri.fromFile(new File(ImageStorageTools.createFilePath(DEFAULT_FORMAT, true))));
 	}
 
 	public static Image fromUri(Uri fileUri)
@@ -233,11 +155,84 @@ public class Image {
 		return new Image(Uri.fromFile(new File(filePath)));
 	}
 
+	/*
+		Decodes base64 image data straight into a file with a fixed size buffer. JPEG and PNG data
+		is stored as is, other formats are decoded and stored as PNG.
+	*/
 	public static Image fromBase64(String b64) throws Exception
 	{
-		byte[] decodedString = Base64.decode(b64, Base64.DEFAULT);
-		Bitmap bmp = BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
-		return ImageStorageTools.saveBitmapAndGetImage(bmp, true, Bitmap.CompressFormat.PNG);
+		InputStream in = new Base64InputStream(new StringInputStream(b64), Base64.DEFAULT);
+		try {
+			byte[] buffer = new byte[ImageUtils.STREAM_BUFFER_SIZE];
+			int read = in.read(buffer);
+			if (read <= 0)
+				throw new Exception("Invalid image data");
+
+			String ext = ImageUtils.getContentTypeForImageData(buffer);
+			if (ext == null)
+			{
+				byte[] decodedString = Base64.decode(b64, Base64.DEFAULT);
+				Bitmap bmp = BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
+				if (bmp == null)
+					throw new Exception("Invalid image data");
+				return ImageStorageTools.saveBitmapAndGetImage(bmp, true, Bitmap.CompressFormat.PNG);
+			}
+
+			File f = new File(ImageStorageTools.createFilePath(ext, true));
+			FileOutputStream out = new FileOutputStream(f);
+			try {
+				do {
+					out.write(buffer, 0, read);
+				} while ((read = in.read(buffer)) != -1);
+			} finally {
+				out.close();
+			}
+
+			BitmapFactory.Options bounds = getBitmapOptionsWithoutDecoding(f.getAbsolutePath());
+			if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+			{
+				f.delete();
+				throw new Exception("Invalid image data");
+			}
+
+			Image i = fromPath(f.getAbsolutePath());
+			i.setDims(bounds.outWidth, bounds.outHeight);
+			return i;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Reads the characters of a string as bytes, without copying it
+	static class StringInputStream extends InputStream
+	{
+		final String _s;
+		int _pos;
+
+		StringInputStream(String s)
+		{
+			_s = s;
+		}
+
+		@Override
+		public int read()
+		{
+			return _pos < _s.length() ? (_s.charAt(_pos++) & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+				return 0;
+			int remaining = _s.length() - _pos;
+			if (remaining <= 0)
+				return -1;
+			int n = Math.min(len, remaining);
+			for (int i = 0; i < n; i++)
+				b[off + i] = (byte)_s.charAt(_pos++);
+			return n;
+		}
 	}
 
 	public static Image fromBitmap(Bitmap bmp) throws Exception
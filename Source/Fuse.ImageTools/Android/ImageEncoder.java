@@ -0,0 +1,179 @@
+package com.fuse.camera;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/*
+	Encodes a bitmap to the highest quality that fits in a byte budget.
+
+	Quality levels between minQuality and the requested quality are binary searched, encoding into
+	one reusable buffer per attempt, and only the chosen result is written to disk. Lossless formats
+	have no quality knob, so a PNG request with a budget is searched as JPEG (or WebP) instead.
+*/
+public class ImageEncoder {
+
+	private static final String TAG = ImageEncoder.class.getSimpleName();
+
+	public static final int DEFAULT_MIN_QUALITY = 30;
+
+	// A ByteArrayOutputStream that can be written out without copying its contents
+	static class EncodeBuffer extends ByteArrayOutputStream
+	{
+		EncodeBuffer(int size)
+		{
+			super(size);
+		}
+
+		void writeTo(File file) throws Exception
+		{
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(buf, 0, count);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	public static class Result
+	{
+		public Bitmap.CompressFormat format;
+		public int quality;
+		public int byteSize;
+		public int attempts;
+		// False when even minQuality did not fit, in which case the minQuality result is used
+		public boolean fits;
+	}
+
+	final Bitmap _bitmap;
+	final EncodeBuffer _buffer;
+	final long _maxBytes;
+	final int _minQuality;
+	final int _maxQuality;
+	int _attempts;
+
+	public ImageEncoder(Bitmap bitmap, long maxBytes, int minQuality, int maxQuality)
+	{
+		_bitmap = bitmap;
+		_maxBytes = maxBytes;
+		_maxQuality = Math.max(0, Math.min(100, maxQuality));
+		_minQuality = Math.max(0, Math.min(_maxQuality, minQuality));
+		// Encoded images rarely exceed the budget by much, so size the buffer for one attempt past it
+		_buffer = new EncodeBuffer((int)Math.min(Integer.MAX_VALUE / 2, Math.max(64 * 1024, maxBytes + maxBytes / 2)));
+	}
+
+	public static boolean isLossy(Bitmap.CompressFormat format)
+	{
+		return format != Bitmap.CompressFormat.PNG;
+	}
+
+	static boolean supportsWebp()
+	{
+		// Lossy WebP with alpha and reliable quality handling arrived in Jelly Bean MR2
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+	}
+
+	int encode(Bitmap.CompressFormat format, int quality)
+	{
+		_buffer.reset();
+		_bitmap.compress(format, quality, _buffer);
+		_attempts++;
+		return _buffer.size();
+	}
+
+	/*
+		Finds the highest quality in [_minQuality, _maxQuality] where format fits in the budget.
+		Leaves the chosen encoding in _buffer.
+	*/
+	Result search(Bitmap.CompressFormat format)
+	{
+		Result result = new Result();
+		result.format = format;
+
+		int size = encode(format, _maxQuality);
+		if (size <= _maxBytes)
+		{
+			result.quality = _maxQuality;
+			result.byteSize = size;
+			result.fits = true;
+			return result;
+		}
+
+		int low = _minQuality, high = _maxQuality - 1;
+		int best = -1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if (encode(format, mid) <= _maxBytes)
+			{
+				best = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		result.fits = best >= 0;
+		result.quality = best >= 0 ? best : _minQuality;
+		// The buffer holds the last attempt, which need not be the chosen one
+		result.byteSize = encode(format, result.quality);
+		return result;
+	}
+
+	/*
+		Encodes into the buffer, returning the chosen format and quality.
+		With allowWebp, WebP is tried as well and whichever fits at the higher quality wins, the smaller on a tie.
+	*/
+	public Result encode(Bitmap.CompressFormat format, boolean allowWebp)
+	{
+		if (!isLossy(format))
+			format = Bitmap.CompressFormat.JPEG;
+
+		Result result = search(format);
+		if (!allowWebp || format == Bitmap.CompressFormat.WEBP || !supportsWebp())
+		{
+			result.attempts = _attempts;
+			return result;
+		}
+
+		Result webp = search(Bitmap.CompressFormat.WEBP);
+		boolean webpWins = webp.fits != result.fits ? webp.fits
+			: webp.quality != result.quality ? webp.quality > result.quality
+			: webp.byteSize < result.byteSize;
+		if (webpWins)
+		{
+			webp.attempts = _attempts;
+			return webp;
+		}
+
+		encode(result.format, result.quality);
+		result.attempts = _attempts;
+		return result;
+	}
+
+	public void writeTo(File file) throws Exception
+	{
+		_buffer.writeTo(file);
+	}
+
+	/*
+		Encodes bitmap within maxBytes and saves it as a new image, named after the chosen format.
+	*/
+	public static Image saveBitmapAndGetImage(Bitmap bitmap, boolean temp, Bitmap.CompressFormat format, int quality, long maxBytes, boolean allowWebp) throws Exception
+	{
+		ImageEncoder encoder = new ImageEncoder(bitmap, maxBytes, Math.min(quality, DEFAULT_MIN_QUALITY), quality);
+		Result result = encoder.encode(format, allowWebp);
+		File f = new File(ImageStorageTools.createFilePath(ImageStorageTools.getExtension(result.format), temp));
+		encoder.writeTo(f);
+		Image image = Image.fromPath(f.getAbsolutePath());
+		image.setDims(bitmap.getWidth(), bitmap.getHeight());
+		return image;
+	}
+}
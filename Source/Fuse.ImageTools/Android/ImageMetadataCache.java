@@ -0,0 +1,304 @@
+package com.fuse.camera;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+	Remembers width, height, mime type, EXIF orientation, byte size and content hash of local image
+	files, so repeated lookups don't have to decode bounds, parse EXIF or read the whole file again.
+
+	Entries are keyed by path and are only trusted while the file's modification time and size
+	are unchanged. The most recently used entries are kept in memory and persisted to a small
+	index file in the app's cache dir, so they survive restarts.
+*/
+public class ImageMetadataCache {
+
+	private static final String TAG = ImageMetadataCache.class.getSimpleName();
+
+	static final int MAX_ENTRIES = 1024;
+	static final String INDEX_FILE_NAME = "image_metadata.idx";
+	static final int INDEX_VERSION = 2;
+	static final int SAVE_DELAY_MS = 2000;
+	static final int ORIENTATION_UNKNOWN = -1;
+
+	public static class Entry
+	{
+		public final long lastModified;
+		public final long byteSize;
+		public final int width;
+		public final int height;
+		public final String mimeType;
+		// EXIF orientation tag value, read on first request
+		volatile int _orientation;
+		// SHA-1 of the file's contents, computed on first request
+		volatile String _contentHash;
+
+		Entry(long lastModified, long byteSize, int width, int height, String mimeType, int orientation, String contentHash)
+		{
+			this.lastModified = lastModified;
+			this.byteSize = byteSize;
+			this.width = width;
+			this.height = height;
+			this.mimeType = mimeType;
+			_orientation = orientation;
+			_contentHash = contentHash;
+		}
+	}
+
+	static final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	static boolean _loaded;
+	static boolean _saveScheduled;
+	static ScheduledExecutorService _saveExecutor;
+
+	/*
+		Returns up to date metadata for the file at path, reading bounds if needed.
+		Returns null if the file is missing or isn't a decodable image.
+	*/
+	public static Entry get(String path)
+	{
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long byteSize = file.length();
+		if (lastModified == 0)
+			return null;
+
+		synchronized (ImageMetadataCache.class)
+		{
+			ensureLoaded();
+			Entry entry = _entries.get(path);
+			if (entry != null && entry.lastModified == lastModified && entry.byteSize == byteSize)
+				return entry;
+		}
+
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0)
+			return null;
+
+		Entry entry = new Entry(lastModified, byteSize, opts.outWidth, opts.outHeight, opts.outMimeType, ORIENTATION_UNKNOWN, null);
+		synchronized (ImageMetadataCache.class)
+		{
+			_entries.put(path, entry);
+			scheduleSave();
+		}
+		return entry;
+	}
+
+	/*
+		Returns bounds-only decode options for the file, as BitmapFactory would with inJustDecodeBounds.
+	*/
+	public static BitmapFactory.Options getBounds(String path)
+	{
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		Entry entry = get(path);
+		if (entry == null)
+		{
+			BitmapFactory.decodeFile(path, opts);
+			return opts;
+		}
+		opts.outWidth = entry.width;
+		opts.outHeight = entry.height;
+		opts.outMimeType = entry.mimeType;
+		return opts;
+	}
+
+	/*
+		Returns the EXIF orientation tag of the file, or ExifInterface.ORIENTATION_UNDEFINED.
+	*/
+	public static int getOrientation(String path)
+	{
+		Entry entry = get(path);
+		if (entry != null && entry._orientation != ORIENTATION_UNKNOWN)
+			return entry._orientation;
+
+		int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+		try {
+			orientation = new ExifInterface(path)
+				.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+		} catch (Exception e) {
+			// Not an image with EXIF data
+		}
+
+		if (entry != null)
+		{
+			synchronized (ImageMetadataCache.class)
+			{
+				entry._orientation = orientation;
+				scheduleSave();
+			}
+		}
+		return orientation;
+	}
+
+	/*
+		Returns a hex SHA-1 of the file's contents. The whole file is only read the first time an
+		unchanged file is seen, also across restarts.
+	*/
+	public static String getContentHash(String path) throws Exception
+	{
+		Entry entry = get(path);
+		if (entry != null && entry._contentHash != null)
+			return entry._contentHash;
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		byte[] buffer = new byte[ImageUtils.STREAM_BUFFER_SIZE];
+		InputStream in = new FileInputStream(path);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b & 0xFF));
+		String hash = sb.toString();
+
+		if (entry != null)
+		{
+			synchronized (ImageMetadataCache.class)
+			{
+				entry._contentHash = hash;
+				scheduleSave();
+			}
+		}
+		return hash;
+	}
+
+	// Call after writing to a file, in case its modification time and size didn't change
+	public static synchronized void invalidate(String path)
+	{
+		if (_entries.remove(path) != null)
+			scheduleSave();
+	}
+
+	static File getIndexFile()
+	{
+		return new File(com.fuse.Activity.getRootActivity().getCacheDir(), INDEX_FILE_NAME);
+	}
+
+	static void ensureLoaded()
+	{
+		if (_loaded)
+			return;
+		_loaded = true;
+
+		File indexFile = getIndexFile();
+		if (!indexFile.exists())
+			return;
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(indexFile));
+			String header = reader.readLine();
+			if (header == null || !header.equals(String.valueOf(INDEX_VERSION)))
+				return;
+
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.split("\t", -1);
+				if (parts.length != 8)
+					continue;
+				try {
+					_entries.put(parts[0], new Entry(
+						Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]),
+						Integer.parseInt(parts[3]),
+						Integer.parseInt(parts[4]),
+						parts[5].length() == 0 ? null : parts[5],
+						Integer.parseInt(parts[6]),
+						parts[7].length() == 0 ? null : parts[7]));
+				} catch (NumberFormatException e) {
+					// Skip broken lines
+				}
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Failed to load image metadata index: " + e.getMessage());
+		} finally {
+			if (reader != null)
+				try { reader.close(); } catch (Exception e) {}
+		}
+	}
+
+	static void scheduleSave()
+	{
+		if (_saveScheduled)
+			return;
+		_saveScheduled = true;
+
+		if (_saveExecutor == null)
+			_saveExecutor = Executors.newSingleThreadScheduledExecutor();
+		_saveExecutor.schedule(new Runnable() { public void run() {
+			save();
+		}}, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	static void save()
+	{
+		List<Map.Entry<String, Entry>> snapshot;
+		synchronized (ImageMetadataCache.class)
+		{
+			_saveScheduled = false;
+			snapshot = new ArrayList<Map.Entry<String, Entry>>(_entries.entrySet());
+		}
+
+		File indexFile = getIndexFile();
+		File tmpFile = new File(indexFile.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(tmpFile));
+			writer.write(String.valueOf(INDEX_VERSION));
+			writer.newLine();
+			for (Map.Entry<String, Entry> e : snapshot)
+			{
+				String path = e.getKey();
+				if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0)
+					continue;
+				Entry entry = e.getValue();
+				writer.write(path + "\t" + entry.lastModified + "\t" + entry.byteSize + "\t"
+					+ entry.width + "\t" + entry.height + "\t"
+					+ (entry.mimeType != null ? entry.mimeType : "") + "\t" + entry._orientation + "\t"
+					+ (entry._contentHash != null ? entry._contentHash : ""));
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (!tmpFile.renameTo(indexFile))
+				tmpFile.delete();
+		} catch (Exception e) {
+			Log.w(TAG, "Failed to save image metadata index: " + e.getMessage());
+			tmpFile.delete();
+		} finally {
+			if (writer != null)
+				try { writer.close(); } catch (Exception e) {}
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package com.fuse.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+
+import com.fuse.android.BitmapPool;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/*
+	An ordered list of operations (crop, resize, rotate, encode) applied to one Image.
+
+	The operations are not run one by one. Instead they are folded into a single region of
+	the source image, a rotation and an output size, so executing the pipeline decodes the
+	source once (region decoded and subsampled where possible), draws it once and encodes it once.
+*/
+public class ImagePipeline {
+
+	private static final String TAG = ImagePipeline.class.getSimpleName();
+
+	final Image _source;
+	final BitmapFactory.Options _bounds;
+
+	// Region of the source image that ends up in the output, in source pixels
+	final Rect _srcRect;
+	// Clockwise rotation applied to _srcRect, a multiple of 90
+	int _rotation;
+	// Size of the output as seen after all operations so far
+	int _width;
+	int _height;
+
+	Bitmap.CompressFormat _format;
+	int _quality = 100;
+	// Upper bound on the encoded size in bytes, 0 for none
+	long _maxBytes;
+	boolean _allowWebp;
+	boolean _changed;
+
+	public ImagePipeline(Image source) throws Exception
+	{
+		_source = source;
+		_bounds = Image.getBitmapOptionsWithoutDecoding(source.getFilePath());
+		if (_bounds.outWidth <= 0 || _bounds.outHeight <= 0)
+			throw new Exception("Unable to read image: " + source.getFilePath());
+		_srcRect = new Rect(0, 0, _bounds.outWidth, _bounds.outHeight);
+		_width = _bounds.outWidth;
+		_height = _bounds.outHeight;
+
+		// Work in the upright coordinates Image reports. This alone doesn't count as a change,
+		// so an image that is only oriented keeps its file and EXIF tag as they are.
+		rotate(getExifRotation(source.getFilePath()));
+		_changed = false;
+	}
+
+	public int getWidth()
+	{
+		return _width;
+	}
+
+	public int getHeight()
+	{
+		return _height;
+	}
+
+	public ImagePipeline crop(int x, int y, int width, int height) throws Exception
+	{
+		if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > _width || y + height > _height)
+			throw new Exception("Crop rectangle is outside the image bounds");
+
+		if (x == 0 && y == 0 && width == _width && height == _height)
+			return this;
+
+		// From current (rotated and scaled) coordinates to rotated source coordinates
+		boolean swap = _rotation == 90 || _rotation == 270;
+		int srcW = _srcRect.width();
+		int srcH = _srcRect.height();
+		float sx = (float)(swap ? srcH : srcW) / _width;
+		float sy = (float)(swap ? srcW : srcH) / _height;
+		float u0 = x * sx, v0 = y * sy;
+		float u1 = (x + width) * sx, v1 = (y + height) * sy;
+
+		// Undo the rotation to get coordinates within _srcRect
+		float p0, q0, p1, q1;
+		switch (_rotation)
+		{
+			case 90:
+				p0 = v0; q0 = srcH - u0; p1 = v1; q1 = srcH - u1;
+				break;
+			case 180:
+				p0 = srcW - u0; q0 = srcH - v0; p1 = srcW - u1; q1 = srcH - v1;
+				break;
+			case 270:
+				p0 = srcW - v0; q0 = u0; p1 = srcW - v1; q1 = u1;
+				break;
+			default:
+				p0 = u0; q0 = v0; p1 = u1; q1 = v1;
+		}
+
+		int left = _srcRect.left;
+		int top = _srcRect.top;
+		_srcRect.set(
+			left + Math.round(Math.min(p0, p1)),
+			top + Math.round(Math.min(q0, q1)),
+			left + Math.round(Math.max(p0, p1)),
+			top + Math.round(Math.max(q0, q1)));
+		if (_srcRect.width() <= 0 || _srcRect.height() <= 0)
+			throw new Exception("Crop rectangle is too small");
+
+		_width = width;
+		_height = height;
+		_changed = true;
+		return this;
+	}
+
+	/*
+		Scales the output, applying the same rules as ImageUtils.ResizeMode has always had:
+		KEEP_ASPECT and SCALE_AND_CROP only ever scale down.
+	*/
+	public ImagePipeline resize(int desiredWidth, int desiredHeight, ImageUtils.ResizeMode mode) throws Exception
+	{
+		if (desiredWidth <= 0 || desiredHeight <= 0)
+			throw new Exception("Width and height must be larger than 0");
+
+		if (_width == desiredWidth && _height == desiredHeight)
+			return this;
+
+		float width = _width;
+		float height = _height;
+		float ratio;
+
+		switch (mode)
+		{
+			case SCALE_AND_CROP:
+				ratio = 1.0f;
+				if (width > height) {
+					if (height > desiredHeight)
+					{
+						ratio = desiredHeight / height;
+					}else if (width > desiredWidth)
+					{
+						ratio = desiredWidth / width;
+					}
+				}else {
+					if (width > desiredWidth)
+					{
+						ratio = desiredWidth / width;
+					}else if (height > desiredHeight)
+					{
+						ratio = desiredHeight / height;
+					}
+				}
+				int scaledWidth = (int)(width * ratio);
+				int scaledHeight = (int)(height * ratio);
+				int cropWidth = Math.min(desiredWidth, scaledWidth);
+				int cropHeight = Math.min(desiredHeight, scaledHeight);
+				int cropX = Math.max(0, scaledWidth/2 - desiredWidth/2);
+				int cropY = Math.max(0, scaledHeight/2 - desiredHeight/2);
+
+				// Crop in current coordinates, then scale the crop
+				crop(
+					(int)(cropX / ratio),
+					(int)(cropY / ratio),
+					Math.min(_width - (int)(cropX / ratio), Math.round(cropWidth / ratio)),
+					Math.min(_height - (int)(cropY / ratio), Math.round(cropHeight / ratio)));
+				setSize(cropWidth, cropHeight);
+				break;
+			case KEEP_ASPECT:
+				if (width > desiredWidth) {
+					ratio = desiredWidth / width;
+					width *= ratio;
+					height *= ratio;
+				}
+				if (height > desiredHeight) {
+					ratio = desiredHeight / height;
+					width *= ratio;
+					height *= ratio;
+				}
+				setSize((int)width, (int)height);
+				break;
+			default:
+				setSize(desiredWidth, desiredHeight);
+		}
+		return this;
+	}
+
+	void setSize(int width, int height) throws Exception
+	{
+		if (width <= 0 || height <= 0)
+			throw new Exception("Invalid image dimensions");
+		if (width == _width && height == _height)
+			return;
+		_width = width;
+		_height = height;
+		_changed = true;
+	}
+
+	public ImagePipeline rotate(int degrees) throws Exception
+	{
+		int normalized = ((degrees % 360) + 360) % 360;
+		if (normalized % 90 != 0)
+			throw new Exception("Rotation must be a multiple of 90 degrees");
+		if (normalized == 0)
+			return this;
+
+		_rotation = (_rotation + normalized) % 360;
+		if (normalized == 90 || normalized == 270)
+		{
+			int w = _width;
+			_width = _height;
+			_height = w;
+		}
+		_changed = true;
+		return this;
+	}
+
+	/*
+		Bakes the EXIF orientation of the source into the pixels. Operations are always in upright
+		coordinates already, so this only forces the output to be written, without an EXIF tag.
+	*/
+	public ImagePipeline correctOrientation() throws Exception
+	{
+		if (_rotation != 0)
+			_changed = true;
+		return this;
+	}
+
+	public ImagePipeline encode(Bitmap.CompressFormat format, int quality)
+	{
+		if (format != null && format != _format)
+		{
+			_format = format;
+			_changed = true;
+		}
+		if (quality != _quality)
+		{
+			_quality = Math.max(0, Math.min(100, quality));
+			_changed = true;
+		}
+		return this;
+	}
+
+	/*
+		Lowers the encode quality as far as needed for the output to fit in maxBytes.
+		With allowWebp the output may be WebP instead of the requested format, if that looks better at the size.
+	*/
+	public ImagePipeline limitSize(long maxBytes, boolean allowWebp)
+	{
+		_maxBytes = Math.max(0, maxBytes);
+		_allowWebp = allowWebp;
+		if (_maxBytes > 0)
+			_changed = true;
+		return this;
+	}
+
+	public static int getExifRotation(String path)
+	{
+		switch (ImageMetadataCache.getOrientation(path)) {
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				return 90;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				return 180;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				return 270;
+			default:
+				return 0;
+		}
+	}
+
+	// Decodes, transforms and draws the source into a new bitmap of the output size
+	public Bitmap render() throws Exception
+	{
+		boolean swap = _rotation == 90 || _rotation == 270;
+		int unrotatedWidth = swap ? _height : _width;
+		int unrotatedHeight = swap ? _width : _height;
+
+		ImageUtils.SampledBitmap sampled = ImageUtils.decodeSampled(_source.getFilePath(), _bounds, _srcRect, unrotatedWidth, unrotatedHeight);
+		Bitmap sourceBitmap = sampled.bitmap;
+		Rect rect = sampled.rect;
+
+		try {
+			if (_rotation == 0 && rect.left == 0 && rect.top == 0
+				&& sourceBitmap.getWidth() == _width && sourceBitmap.getHeight() == _height)
+			{
+				Bitmap result = sourceBitmap;
+				sourceBitmap = null;
+				return result;
+			}
+
+			Matrix matrix = new Matrix();
+			matrix.setTranslate(-rect.left, -rect.top);
+			matrix.postScale((float)unrotatedWidth / rect.width(), (float)unrotatedHeight / rect.height());
+			if (_rotation != 0)
+			{
+				matrix.postRotate(_rotation);
+				switch (_rotation)
+				{
+					case 90:
+						matrix.postTranslate(_width, 0);
+						break;
+					case 180:
+						matrix.postTranslate(_width, _height);
+						break;
+					case 270:
+						matrix.postTranslate(0, _height);
+						break;
+				}
+			}
+
+			Bitmap resultBitmap = BitmapPool.get(_width, _height, Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(resultBitmap);
+			canvas.drawBitmap(sourceBitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+			return resultBitmap;
+		} finally {
+			BitmapPool.put(sourceBitmap);
+		}
+	}
+
+	public Image execute(boolean performInPlace) throws Exception
+	{
+		if (!_changed)
+			return _source;
+
+		Bitmap.CompressFormat fmt = _format != null ? _format : ImageUtils.compressFormatFromOptions(_bounds);
+		Bitmap resultBitmap = render();
+
+		try{
+			if(performInPlace)
+			{
+				File f = _source.getFile();
+				File target;
+				if (_maxBytes > 0)
+				{
+					ImageEncoder encoder = new ImageEncoder(resultBitmap, _maxBytes, Math.min(_quality, ImageEncoder.DEFAULT_MIN_QUALITY), _quality);
+					ImageEncoder.Result result = encoder.encode(fmt, _allowWebp);
+					target = fileForFormat(f, result.format);
+					encoder.writeTo(target);
+				}
+				else
+				{
+					target = fileForFormat(f, fmt);
+					FileOutputStream fOut = new FileOutputStream(target);
+					resultBitmap.compress(fmt, _quality, fOut);
+					fOut.flush();
+					fOut.close();
+				}
+				if (!target.equals(f))
+				{
+					// The image was encoded in another format, so it moves to a file named after it
+					f.delete();
+					ImageMetadataCache.invalidate(f.getAbsolutePath());
+					ImageTempStore.release(f.getAbsolutePath());
+					ImageTempStore.register(target.getAbsolutePath());
+					Image image = Image.fromPath(target.getAbsolutePath());
+					image.setDims(resultBitmap.getWidth(), resultBitmap.getHeight());
+					return image;
+				}
+				ImageMetadataCache.invalidate(f.getAbsolutePath());
+				_source.setDims(resultBitmap.getWidth(), resultBitmap.getHeight());
+				return _source;
+			}else if (_maxBytes > 0){
+				return ImageEncoder.saveBitmapAndGetImage(resultBitmap, true, fmt, _quality, _maxBytes, _allowWebp);
+			}else{
+				return ImageStorageTools.saveBitmapAndGetImage(resultBitmap, true, fmt, _quality);
+			}
+		}finally{
+			BitmapPool.put(resultBitmap);
+		}
+	}
+
+	// f if its extension matches format, otherwise a new file next to it with the extension of format
+	static File fileForFormat(File f, Bitmap.CompressFormat format) throws Exception
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		String ext = dot >= 0 ? name.substring(dot + 1) : "";
+		try {
+			if (formatFromString(ext) == format)
+				return f;
+		} catch (Exception e) {
+			// Unknown extension
+		}
+
+		String newExt = ImageStorageTools.getExtension(format);
+		File target = new File(f.getParentFile(), (dot >= 0 ? name.substring(0, dot) : name) + "." + newExt);
+		if (target.exists())
+			target = new File(f.getParentFile(), ImageStorageTools.getImageFileName(newExt));
+		return target;
+	}
+
+	public static Bitmap.CompressFormat formatFromString(String format) throws Exception
+	{
+		String lowerCaseType = format.toLowerCase();
+		if (lowerCaseType.equals("jpeg") || lowerCaseType.equals("jpg"))
+			return Bitmap.CompressFormat.JPEG;
+		if (lowerCaseType.equals("png"))
+			return Bitmap.CompressFormat.PNG;
+		if (lowerCaseType.equals("webp"))
+			return Bitmap.CompressFormat.WEBP;
+		throw new Exception("Unknown image format: " + format);
+	}
+
+	/*
+		Builds a pipeline from a JSON array of operations, e.g.
+		[{"type":"orient"},{"type":"crop","x":0,"y":0,"width":100,"height":100},
+		 {"type":"resize","desiredWidth":50,"desiredHeight":50,"mode":1},{"type":"encode","format":"jpeg","quality":80,"maxBytes":200000}]
+	*/
+	public static ImagePipeline fromJson(Image source, String operations) throws Exception
+	{
+		ImagePipeline pipeline = new ImagePipeline(source);
+		JSONArray ops = new JSONArray(operations);
+		for (int i = 0; i < ops.length(); i++)
+		{
+			JSONObject op = ops.getJSONObject(i);
+			String type = op.getString("type");
+			if (type.equals("crop"))
+			{
+				int width = op.getInt("width");
+				pipeline.crop(op.optInt("x", 0), op.optInt("y", 0), width, op.optInt("height", width));
+			}
+			else if (type.equals("resize"))
+			{
+				int width = op.getInt("desiredWidth");
+				int mode = op.optInt("mode", ImageUtils.ResizeMode.IGNORE_ASPECT.ordinal());
+				if (mode < 0 || mode >= ImageUtils.ResizeMode.values().length)
+					throw new Exception("Unknown resize mode: " + mode);
+				pipeline.resize(width, op.optInt("desiredHeight", width), ImageUtils.ResizeMode.values()[mode]);
+			}
+			else if (type.equals("rotate"))
+			{
+				pipeline.rotate(op.getInt("degrees"));
+			}
+			else if (type.equals("orient"))
+			{
+				pipeline.correctOrientation();
+			}
+			else if (type.equals("encode"))
+			{
+				// A missing or null format keeps the source format; optString would turn null into "null"
+				String format = op.isNull("format") ? null : op.getString("format");
+				pipeline.encode(format != null ? formatFromString(format) : null, op.optInt("quality", pipeline._quality));
+				if (op.has("maxBytes"))
+					pipeline.limitSize(op.getLong("maxBytes"), op.optBoolean("allowWebp", false));
+			}
+			else
+			{
+				throw new Exception("Unknown image operation: " + type);
+			}
+		}
+		return pipeline;
+	}
+}
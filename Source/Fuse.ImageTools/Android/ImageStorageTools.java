@@ -7,16 +7,24 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.util.LruCache;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import android.webkit.MimeTypeMap;
@@ -25,14 +33,11 @@ import java.util.UUID;
 public class ImageStorageTools {
 	private static final String TAG = ImageStorageTools.class.getSimpleName();
 
-	// Hmmm when to run this?
+	// Old scratch images are evicted by ImageTempStore as new ones are created, this removes all that aren't claimed
 	public static void clearCache()
 	{
 		try{
-			File[] files = new File(getTempFileDir()).listFiles();
-			for(File f : files){
-				f.delete();
-			}
+			ImageTempStore.clear();
 		}catch(Exception e){
 			e.printStackTrace();
 		}
@@ -43,24 +48,65 @@ public class ImageStorageTools {
 		return path.substring(path.lastIndexOf(File.separator)+1);
 	}
 
+	static final int COPY_BUFFER_SIZE = 256 * 1024;
+	static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+
 	static void copyStream(InputStream in, OutputStream out) throws Exception
 	{
-		byte[] buffer = new byte[1024];
-		int read;
-		while ((read = in.read(buffer)) != -1) {
-			out.write(buffer, 0, read);
+		try {
+			ReadableByteChannel src = Channels.newChannel(in);
+			WritableByteChannel dst = Channels.newChannel(out);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+			while (src.read(buffer) != -1) {
+				buffer.flip();
+				while (buffer.hasRemaining())
+					dst.write(buffer);
+				buffer.clear();
+			}
+			out.flush();
+		} finally {
+			in.close();
+			out.close();
 		}
+	}
 
-		in.close();
-		in = null;
-		out.flush();
-		out.close();
-		out = null;
+	// Copies all of in to out, letting the kernel move the data where it can
+	static void copyChannel(FileChannel in, FileChannel out) throws IOException
+	{
+		long size = in.size();
+		long position = 0;
+		while (position < size) {
+			long transferred = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK_SIZE), out);
+			if (transferred <= 0)
+				break;
+			position += transferred;
+		}
+		if (position < size)
+			throw new IOException("Copy ended after " + position + " of " + size + " bytes");
+	}
+
+	static void copyFile(File inputFile, File targetFile) throws Exception
+	{
+		FileInputStream in = new FileInputStream(inputFile);
+		try {
+			FileOutputStream out = new FileOutputStream(targetFile);
+			try {
+				copyChannel(in.getChannel(), out.getChannel());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
 	}
 
 	public static Image copyImage(File inputFile, File targetFile, boolean move) throws Exception
 	{
-		copyStream(new FileInputStream(inputFile), new FileOutputStream(targetFile));
+		// A rename is atomic and doesn't touch the data, but only works within one filesystem
+		if(move && inputFile.renameTo(targetFile))
+			return Image.fromPath(targetFile.getAbsolutePath());
+
+		copyFile(inputFile, targetFile);
 
 		if(move)
 			inputFile.delete();
@@ -76,11 +122,14 @@ public class ImageStorageTools {
 
 	public static Image saveBitmapAndGetImage(Bitmap bmp, boolean temp, Bitmap.CompressFormat fmt) throws Exception
 	{
-		String ext = fmt == Bitmap.CompressFormat.PNG ? "png" : "jpg";
+		return saveBitmapAndGetImage(bmp, temp, fmt, 100);
+	}
 
-		File f = new File(createFilePath(ext, temp));
+	public static Image saveBitmapAndGetImage(Bitmap bmp, boolean temp, Bitmap.CompressFormat fmt, int quality) throws Exception
+	{
+		File f = new File(createFilePath(getExtension(fmt), temp));
 		FileOutputStream fOut = new FileOutputStream(f);
-		bmp.compress(fmt, 100, fOut);
+		bmp.compress(fmt, quality, fOut);
 		fOut.flush();
 		fOut.close();
 		Image i = Image.fromPath(f.getAbsolutePath());
@@ -89,15 +138,27 @@ public class ImageStorageTools {
 		return i;
 	}
 
+	public static String getExtension(Bitmap.CompressFormat fmt)
+	{
+		if (fmt == Bitmap.CompressFormat.PNG)
+			return "png";
+		if (fmt == Bitmap.CompressFormat.WEBP)
+			return "webp";
+		return "jpg";
+	}
+
 	public static void saveBitmap(Bitmap bmp, String path) throws Exception
 	{
 		String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
-		Bitmap.CompressFormat fmt = ext == "png" ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+		Bitmap.CompressFormat fmt = ext.equals("png") ? Bitmap.CompressFormat.PNG
+			: ext.equals("webp") ? Bitmap.CompressFormat.WEBP
+			: Bitmap.CompressFormat.JPEG;
 		File f = new File(path);
 		FileOutputStream fOut = new FileOutputStream(f);
 		bmp.compress(fmt, 100, fOut);
 		fOut.flush();
 		fOut.close();
+		ImageMetadataCache.invalidate(f.getAbsolutePath());
 		bmp.recycle();
 	}
 
@@ -131,7 +192,10 @@ public class ImageStorageTools {
 			}
 		}
 
-		return new File(mediaStorageDir.getAbsolutePath() + File.separator + fileName);
+		File outFile = new File(mediaStorageDir.getAbsolutePath() + File.separator + fileName);
+		if(temp)
+			ImageTempStore.register(outFile.getAbsolutePath());
+		return outFile;
 	}
 
 	public static String getImageFileName(String extension)
@@ -145,19 +209,39 @@ public class ImageStorageTools {
 		return MediaStore.Images.Media.getBitmap(cr, contentUri);
 	}
 
+	// The mime type of a content uri doesn't change, so remember the most recent lookups
+	static final LruCache<String, String> _mimeTypes = new LruCache<String, String>(256);
+
 	public static String getMimeType(Uri uriImage)
 	{
+		String key = uriImage.toString();
+		String strMimeType = _mimeTypes.get(key);
+		if (strMimeType != null)
+			return strMimeType;
+
+		if (ContentResolver.SCHEME_FILE.equals(uriImage.getScheme()))
+		{
+			ImageMetadataCache.Entry entry = ImageMetadataCache.get(uriImage.getPath());
+			return entry != null ? entry.mimeType : null;
+		}
+
 		ContentResolver cr = com.fuse.Activity.getRootActivity().getContentResolver();
-		String strMimeType = null;
 		Cursor cursor = cr.query(uriImage,
 												new String[] { MediaStore.MediaColumns.MIME_TYPE },
 												null, null, null);
 
-		if (cursor != null && cursor.moveToNext())
-		{
-			strMimeType = cursor.getString(0);
+		try {
+			if (cursor != null && cursor.moveToNext())
+			{
+				strMimeType = cursor.getString(0);
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
 		}
 
+		if (strMimeType != null)
+			_mimeTypes.put(key, strMimeType);
 		return strMimeType;
 	}
 
@@ -168,6 +252,33 @@ public class ImageStorageTools {
 		String name = getImageFileName(ext);
 		File outFile = getOutputMediaFile(true, name);
 		ContentResolver cr = com.fuse.Activity.getRootActivity().getContentResolver();
+
+		// Seekable content (most providers) is copied channel to channel, anything else is streamed
+		ParcelFileDescriptor pfd = null;
+		try {
+			pfd = cr.openFileDescriptor(contentUri, "r");
+		} catch (Exception e) {
+			pfd = null;
+		}
+
+		if (pfd != null) {
+			try {
+				// Pipes and sockets have no size, and a channel copy would see them as empty
+				if (pfd.getStatSize() >= 0) {
+					FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+					FileOutputStream out = new FileOutputStream(outFile);
+					try {
+						copyChannel(in.getChannel(), out.getChannel());
+					} finally {
+						out.close();
+					}
+					return Image.fromUri(Uri.fromFile(outFile));
+				}
+			} finally {
+				pfd.close();
+			}
+		}
+
 		copyStream(cr.openInputStream(contentUri), new FileOutputStream(outFile));
 		return Image.fromUri(Uri.fromFile(outFile));
 	}
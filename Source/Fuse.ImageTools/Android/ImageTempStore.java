@@ -0,0 +1,225 @@
+package com.fuse.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+	Keeps the scratch image directory (ImageStorageTools.getTempFileDir()) within a byte budget.
+
+	Files are tracked in an in-memory index ordered by last access, built from a single directory
+	listing the first time it is needed. Whenever a new scratch file is created, the least recently
+	used files are deleted until the directory is within budget again.
+
+	Files that are claimed are evicted last. JS and Uno hold images by path alone, so there is no
+	object whose lifetime says whether a file is still used. Instead a file is claimed whenever its
+	path is handed out or used: when it is created as a scratch file, and every time an Image is made
+	for it. release() (ImageTools.releaseImage from JS) ends the claim at once. Files left over from
+	earlier runs and cached thumbnails that haven't been handed out are unclaimed from the start.
+
+	Most apps never release anything, so a claim is a lease rather than a pin: once the directory
+	has been over budget for OVER_BUDGET_GRACE_MS, files that haven't been used for CLAIM_LEASE_MS
+	are evicted like unclaimed ones. An app that keeps a path for longer without using it, and
+	without releasing it, can find the file gone; anything used within the lease is kept.
+*/
+public class ImageTempStore {
+
+	private static final String TAG = ImageTempStore.class.getSimpleName();
+
+	static final long DEFAULT_MAX_BYTES = 100L * 1024 * 1024;
+	static final long SIZE_UNKNOWN = -1;
+	static final long CLAIM_LEASE_MS = 10 * 60 * 1000;
+	static final long OVER_BUDGET_GRACE_MS = 60 * 1000;
+
+	// path -> size in bytes, least recently used first
+	static final LinkedHashMap<String, Long> _files = new LinkedHashMap<String, Long>(64, 0.75f, true);
+	// path -> when the file was last claimed, in SystemClock.elapsedRealtime()
+	static final HashMap<String, Long> _claimed = new HashMap<String, Long>();
+
+	static long _maxBytes = DEFAULT_MAX_BYTES;
+	// When the directory was first found over budget since it was last within it, 0 if it is within
+	static long _overBudgetSince;
+	static boolean _indexed;
+	static String _dir;
+
+	static String getDir()
+	{
+		if (_dir == null)
+			_dir = new File(ImageStorageTools.getTempFileDir()).getAbsolutePath() + File.separator;
+		return _dir;
+	}
+
+	static boolean isTempFile(String path)
+	{
+		return path != null && path.startsWith(getDir());
+	}
+
+	static void ensureIndexed()
+	{
+		if (_indexed)
+			return;
+		_indexed = true;
+
+		File[] files = new File(getDir()).listFiles();
+		if (files == null)
+			return;
+
+		// Oldest first, so the index starts out in approximate LRU order
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long la = a.lastModified(), lb = b.lastModified();
+				return la < lb ? -1 : (la == lb ? 0 : 1);
+			}
+		});
+		for (File f : files)
+		{
+			if (f.isFile())
+				_files.put(f.getAbsolutePath(), f.length());
+		}
+	}
+
+	/*
+		Registers a newly created scratch file, claimed by whoever created it, and evicts old files
+		if the directory is over budget. The file may not have been written yet.
+	*/
+	public static synchronized void register(String path)
+	{
+		if (!isTempFile(path))
+			return;
+		ensureIndexed();
+		_files.put(path, SIZE_UNKNOWN);
+		_claimed.put(path, SystemClock.elapsedRealtime());
+		trim();
+	}
+
+	// Registers a scratch file that may be evicted until it is claimed, such as a cached thumbnail
+	public static synchronized void registerUnclaimed(String path)
+	{
+		if (!isTempFile(path))
+			return;
+		ensureIndexed();
+		_files.put(path, SIZE_UNKNOWN);
+		trim();
+	}
+
+	// Claims a scratch file, or renews its claim, and marks it as recently used
+	public static synchronized void claim(String path)
+	{
+		if (!isTempFile(path))
+			return;
+		ensureIndexed();
+		if (_files.get(path) == null)
+			_files.put(path, SIZE_UNKNOWN);
+		_claimed.put(path, SystemClock.elapsedRealtime());
+	}
+
+	/*
+		Lets a scratch file be evicted again. It is only deleted once eviction reaches it, as the
+		least recently used file while the directory is over budget.
+	*/
+	public static synchronized void release(String path)
+	{
+		if (!isTempFile(path) || _claimed.remove(path) == null)
+			return;
+		ensureIndexed();
+		_files.get(path); // marks it as the most recently used
+		trim();
+	}
+
+	static boolean isClaimed(String path, long now)
+	{
+		Long claimed = _claimed.get(path);
+		if (claimed == null)
+			return false;
+		boolean leaseExpired = now - claimed >= CLAIM_LEASE_MS;
+		boolean overBudgetTooLong = _overBudgetSince != 0 && now - _overBudgetSince >= OVER_BUDGET_GRACE_MS;
+		return !(leaseExpired && overBudgetTooLong);
+	}
+
+	static void trim()
+	{
+		long now = SystemClock.elapsedRealtime();
+		long total = 0;
+		for (Map.Entry<String, Long> e : _files.entrySet())
+		{
+			long size = e.getValue();
+			// Files are registered before they are written, so measure them until they have content
+			if (size <= 0)
+			{
+				size = new File(e.getKey()).length();
+				e.setValue(size);
+			}
+			total += size;
+		}
+
+		if (total <= _maxBytes)
+		{
+			_overBudgetSince = 0;
+			return;
+		}
+		if (_overBudgetSince == 0)
+			_overBudgetSince = now;
+
+		for (Iterator<Map.Entry<String, Long>> it = _files.entrySet().iterator(); it.hasNext() && total > _maxBytes; )
+		{
+			Map.Entry<String, Long> e = it.next();
+			String path = e.getKey();
+			if (isClaimed(path, now))
+				continue;
+
+			File f = new File(path);
+			if (f.delete() || !f.exists())
+			{
+				total -= e.getValue();
+				it.remove();
+				_claimed.remove(path);
+				ImageMetadataCache.invalidate(path);
+			}
+		}
+
+		if (total <= _maxBytes)
+			_overBudgetSince = 0;
+		else
+			Log.w(TAG, "Scratch images use " + total + " bytes, but all remaining files are claimed");
+	}
+
+	public static synchronized void setMaxBytes(long maxBytes)
+	{
+		_maxBytes = Math.max(0, maxBytes);
+		ensureIndexed();
+		trim();
+	}
+
+	public static synchronized long getMaxBytes()
+	{
+		return _maxBytes;
+	}
+
+	// Deletes all scratch files that aren't claimed
+	public static synchronized void clear()
+	{
+		ensureIndexed();
+		long now = SystemClock.elapsedRealtime();
+		for (Iterator<Map.Entry<String, Long>> it = _files.entrySet().iterator(); it.hasNext(); )
+		{
+			String path = it.next().getKey();
+			if (isClaimed(path, now))
+				continue;
+
+			File f = new File(path);
+			if (f.delete() || !f.exists())
+			{
+				it.remove();
+				_claimed.remove(path);
+				ImageMetadataCache.invalidate(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.fuse.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.fuse.android.BitmapPool;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/*
+	Generates and caches downscaled, upright copies of images at a fixed set of sizes.
+
+	A request for any size decodes the original once (subsampled to the largest size that is
+	missing) and writes every configured size from that one decode, each level drawn from the next
+	larger one. Thumbnails are named after a hash of the original's contents, so copies of the same
+	photo share them, and live in the scratch image directory where ImageTempStore keeps them
+	within its byte budget. Later requests get the smallest cached size that is at least as large
+	as requested, without touching the original.
+*/
+public class ImageThumbnails {
+
+	private static final String TAG = ImageThumbnails.class.getSimpleName();
+
+	static final int[] DEFAULT_SIZES = { 128, 512, 1080 };
+	static final int JPEG_QUALITY = 85;
+	static final String FILE_PREFIX = "thumb_";
+
+	// Longest edge of each thumbnail level, ascending
+	static int[] _sizes = DEFAULT_SIZES;
+
+	public static synchronized void setSizes(int[] sizes) throws Exception
+	{
+		if (sizes == null || sizes.length == 0)
+			throw new Exception("At least one thumbnail size is required");
+		int[] sorted = sizes.clone();
+		Arrays.sort(sorted);
+		if (sorted[0] <= 0)
+			throw new Exception("Thumbnail sizes must be larger than 0");
+		_sizes = sorted;
+	}
+
+	public static void setSizes(String json) throws Exception
+	{
+		JSONArray array = new JSONArray(json);
+		int[] sizes = new int[array.length()];
+		for (int i = 0; i < sizes.length; i++)
+			sizes[i] = array.getInt(i);
+		setSizes(sizes);
+	}
+
+	static synchronized int[] getSizes()
+	{
+		return _sizes;
+	}
+
+	/*
+		Returns a thumbnail whose longest edge is the smallest configured size that is at least size,
+		or the largest configured size if none is. Thumbnails are never larger than the original.
+	*/
+	public static Image get(Image source, int size) throws Exception
+	{
+		if (size <= 0)
+			throw new Exception("Thumbnail size must be larger than 0");
+
+		int[] sizes = getSizes();
+		String hash = ImageMetadataCache.getContentHash(source.getFile().getAbsolutePath());
+
+		int level = sizes.length - 1;
+		for (int i = 0; i < sizes.length; i++)
+		{
+			if (sizes[i] >= size)
+			{
+				level = i;
+				break;
+			}
+		}
+
+		for (int i = level; i < sizes.length; i++)
+		{
+			File cached = getThumbnailFile(hash, sizes[i]);
+			if (cached.exists())
+				return Image.fromPath(cached.getAbsolutePath());
+		}
+
+		generate(source, hash, sizes);
+		return Image.fromPath(getThumbnailFile(hash, sizes[level]).getAbsolutePath());
+	}
+
+	static File getThumbnailFile(String hash, int size)
+	{
+		return new File(ImageStorageTools.getTempFileDir(), FILE_PREFIX + hash + "_" + size + ".jpg");
+	}
+
+	static void generate(Image source, String hash, int[] sizes) throws Exception
+	{
+		ImagePipeline pipeline = new ImagePipeline(source);
+		int width = pipeline.getWidth();
+		int height = pipeline.getHeight();
+		int longest = Math.max(width, height);
+
+		// Decode once, at the largest size that is needed
+		int maxSize = Math.min(longest, sizes[sizes.length - 1]);
+		pipeline.resize(scaled(width, maxSize, longest), scaled(height, maxSize, longest), ImageUtils.ResizeMode.IGNORE_ASPECT);
+		Bitmap level = pipeline.render();
+
+		File dir = new File(ImageStorageTools.getTempFileDir());
+		if (!dir.exists())
+			dir.mkdirs();
+
+		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		try {
+			for (int i = sizes.length - 1; i >= 0; i--)
+			{
+				int levelSize = Math.min(longest, sizes[i]);
+				int levelWidth = scaled(width, levelSize, longest);
+				int levelHeight = scaled(height, levelSize, longest);
+				if (level.getWidth() != levelWidth || level.getHeight() != levelHeight)
+				{
+					Bitmap smaller = BitmapPool.get(levelWidth, levelHeight, Bitmap.Config.ARGB_8888);
+					new Canvas(smaller).drawBitmap(level, null, new Rect(0, 0, levelWidth, levelHeight), paint);
+					BitmapPool.put(level);
+					level = smaller;
+				}
+
+				File target = getThumbnailFile(hash, sizes[i]);
+				if (!target.exists())
+					write(level, target);
+			}
+		} finally {
+			BitmapPool.put(level);
+		}
+	}
+
+	static int scaled(int dimension, int size, int longest)
+	{
+		return Math.max(1, Math.round((float)dimension * size / longest));
+	}
+
+	/*
+		Writes through a temporary file of its own, so concurrent readers never see a partial
+		thumbnail even when two jobs generate the same one. Whichever finishes last replaces the other's.
+	*/
+	static void write(Bitmap bitmap, File target) throws Exception
+	{
+		File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(target))
+		{
+			tmp.delete();
+			return;
+		}
+		ImageTempStore.registerUnclaimed(target.getAbsolutePath());
+	}
+}
@@ -4,13 +4,20 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.fuse.android.BitmapPool;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ByteArrayOutputStream;
 
@@ -26,42 +33,23 @@ public class ImageUtils {
 	}
 
 	public static Image crop(Image inImage, int x, int y, int width, int height, int quality, boolean performInPlace) throws Exception{
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		Bitmap srcBmp = BitmapFactory.decodeFile(inImage.getFilePath(), options);
-		Bitmap dstBmp = Bitmap.createBitmap(srcBmp, x, y, width, height);
-
-		Bitmap.CompressFormat fmt;
-		String lowerCaseType = options.outMimeType.toLowerCase();
-
-		if(lowerCaseType.contains("jpeg") || lowerCaseType.contains("jpg")) {
-			fmt = Bitmap.CompressFormat.JPEG;
-		}else if(lowerCaseType.contains("png")) {
-			fmt = Bitmap.CompressFormat.PNG;
-		}else{
-			throw new Exception("Unknown image file type");
-		}
+		return crop(inImage, x, y, width, height, width, height, quality, performInPlace);
+	}
 
-		if(performInPlace)
-		{
-			File f = inImage.getFile();
-			FileOutputStream fOut = new FileOutputStream(f);
-			dstBmp.compress(fmt, quality, fOut);
-			fOut.flush();
-			fOut.close();
-			inImage.setDims(dstBmp.getWidth(), dstBmp.getHeight());
-			dstBmp.recycle();
-
-			if (!srcBmp.isRecycled())
-				srcBmp.recycle();
-
-			return inImage;
-		}else{
-			return ImageStorageTools.saveBitmapAndGetImage(dstBmp, true, fmt);
-		}
+	/*
+		Crops the given rectangle out of the image and scales it to outWidth x outHeight. Only the
+		requested region is decoded, subsampled as far as the output size allows.
+	*/
+	public static Image crop(Image inImage, int x, int y, int width, int height, int outWidth, int outHeight, int quality, boolean performInPlace) throws Exception{
+		return new ImagePipeline(inImage)
+			.crop(x, y, width, height)
+			.resize(outWidth, outHeight, ResizeMode.IGNORE_ASPECT)
+			.encode(null, quality)
+			.execute(performInPlace);
 	}
 
 	public static String getContentTypeForImageData(byte[] bytes) {
-	    int c = bytes[0];
+	    int c = bytes[0] & 0xFF;
 	    switch (c) {
 			  case 0xFF:
 			      return "jpg";
@@ -73,119 +61,94 @@ public class ImageUtils {
 	}
 
 	public static Image resize(Image inImage, int desiredWidth, int desiredHeight, ResizeMode mode, int quality, boolean performInPlace) throws Exception{
-		float width = inImage.getWidth();
-		float height = inImage.getHeight();
-		float ratio;
-
-		Bitmap sourceBitmap;
-		Bitmap scaledBitmap = null;
-		Bitmap resultBitmap = null;
-
-		BitmapFactory.Options options = new BitmapFactory.Options();
-
-		if((int)width == desiredWidth && (int)height == desiredHeight)
-			return inImage;
+		return new ImagePipeline(inImage)
+			.resize(desiredWidth, desiredHeight, mode)
+			.encode(null, quality)
+			.execute(performInPlace);
+	}
 
-		options.inScaled = true;
+	static class SampledBitmap
+	{
+		public final Bitmap bitmap;
+		// Where the requested source region is within bitmap
+		public final Rect rect;
 
-		if(width<height){
-			options.inDensity = (int)height;
-			options.inTargetDensity = desiredHeight;
-		}else{
-			options.inDensity = (int)width;
-			options.inTargetDensity = desiredWidth;
+		SampledBitmap(Bitmap bitmap, Rect rect)
+		{
+			this.bitmap = bitmap;
+			this.rect = rect;
 		}
+	}
 
-		sourceBitmap = BitmapFactory.decodeFile(inImage.getFilePath(), options);
-
-		switch(mode){
-			case SCALE_AND_CROP:
-				ratio = 1.0f;
-				if (width > height) {
-					if (height > desiredHeight)
-					{
-						ratio = desiredHeight / height;
-					}else if (width > desiredWidth)
-					{
-						ratio = desiredWidth / width;
-					}
-				}else {
-					if (width > desiredWidth)
-					{
-						ratio = desiredWidth / width;
-					}else if (height > desiredHeight)
-					{
-						ratio = desiredHeight / height;
-					}
-				}
-				width *= ratio;
-				height *= ratio;
-
-				scaledBitmap = Bitmap.createScaledBitmap(
-						sourceBitmap,
-						(int)width,
-						(int)height,
-						true);
-
-				resultBitmap = Bitmap.createBitmap(
-						scaledBitmap,
-						Math.max(0, (int)width/2 - desiredWidth/2),
-						Math.max(0, (int)height/2 - desiredHeight/2),
-						Math.min(desiredWidth, (int)width),
-						Math.min(desiredHeight, (int)height));
-
-				break;
-			case KEEP_ASPECT:
-				if (width > desiredWidth) {
-					ratio = desiredWidth / width;
-					width *= ratio;
-					height *= ratio;
-				}
-				if (height > desiredHeight) {
-					ratio = desiredHeight / height;
-					width *= ratio;
-					height *= ratio;
-				}
+	/*
+		Decodes srcRect of the image at path, to be drawn at dstWidth x dstHeight.
 
-				resultBitmap = Bitmap.createScaledBitmap(
-						sourceBitmap,
-						(int)width,
-						(int)height,
-						true);
-				break;
-			default:
-				//Use width/height as given
-				resultBitmap = Bitmap.createScaledBitmap(
-						sourceBitmap,
-						desiredWidth,
-						desiredHeight,
-						true);
-		}
+		The image is decoded with the largest power of two subsample that still keeps srcRect
+		at least as large as the destination. When only part of the image is needed it is
+		decoded with BitmapRegionDecoder. Peak memory is therefore proportional to the output
+		size rather than the size of the source image.
+	*/
+	static SampledBitmap decodeSampled(String path, BitmapFactory.Options bounds, Rect srcRect, int dstWidth, int dstHeight) throws Exception
+	{
+		if (dstWidth <= 0 || dstHeight <= 0 || srcRect.width() <= 0 || srcRect.height() <= 0)
+			throw new Exception("Invalid image dimensions");
 
-		Bitmap.CompressFormat fmt = compressFormatFromOptions(options);
+		// Size the whole source would have if scaled like srcRect is scaled into the destination
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = bounds.outWidth;
+		options.outHeight = bounds.outHeight;
+		int reqWidth = (int)Math.ceil((double)bounds.outWidth * dstWidth / srcRect.width());
+		int reqHeight = (int)Math.ceil((double)bounds.outHeight * dstHeight / srcRect.height());
+		options.inSampleSize = Image.calculateInSampleSize(options, reqWidth, reqHeight);
+		options.inScaled = false;
+
+		boolean isRegion = srcRect.left > 0 || srcRect.top > 0 || srcRect.right < bounds.outWidth || srcRect.bottom < bounds.outHeight;
+		if (isRegion && supportsRegionDecoding(bounds.outMimeType))
+		{
+			Bitmap region = decodeRegion(path, srcRect, options);
+			if (region != null)
+				return new SampledBitmap(region, new Rect(0, 0, region.getWidth(), region.getHeight()));
+		}
 
-		try{
-			if(performInPlace)
-			{
-				File f = inImage.getFile();
-				FileOutputStream fOut = new FileOutputStream(f);
-				resultBitmap.compress(fmt, quality, fOut);
-				fOut.flush();
-				fOut.close();
-				inImage.setDims(resultBitmap.getWidth(), resultBitmap.getHeight());
-				return inImage;
-			}else{
-				return ImageStorageTools.saveBitmapAndGetImage(resultBitmap, true, fmt);
-			}
-		}finally{
-			sourceBitmap.recycle();
+		int sample = options.inSampleSize;
+		Bitmap sourceBitmap = BitmapPool.decodeFile(path, options,
+			(bounds.outWidth + sample - 1) / sample, (bounds.outHeight + sample - 1) / sample);
+		if (sourceBitmap == null)
+			throw new Exception("Unable to decode image: " + path);
+
+		// The decoder may not honour inSampleSize exactly, so map srcRect using the actual decoded size
+		float sx = (float)sourceBitmap.getWidth() / bounds.outWidth;
+		float sy = (float)sourceBitmap.getHeight() / bounds.outHeight;
+		return new SampledBitmap(sourceBitmap, new Rect(
+			Math.round(srcRect.left * sx),
+			Math.round(srcRect.top * sy),
+			Math.round(srcRect.right * sx),
+			Math.round(srcRect.bottom * sy)));
+	}
 
-			if (scaledBitmap != null && !scaledBitmap.isRecycled()) {
-				scaledBitmap.recycle();
-			}
+	static boolean supportsRegionDecoding(String mimeType)
+	{
+		if (mimeType == null)
+			return false;
+		String lowerCaseType = mimeType.toLowerCase();
+		return lowerCaseType.contains("jpeg") || lowerCaseType.contains("jpg")
+			|| lowerCaseType.contains("png") || lowerCaseType.contains("webp")
+			|| (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && lowerCaseType.contains("heif"));
+	}
 
-			if (resultBitmap != null && !resultBitmap.isRecycled())
-				resultBitmap.recycle();
+	// Decodes only srcRect of the image. Returns null if the region decoder can't handle the file.
+	static Bitmap decodeRegion(String path, Rect srcRect, BitmapFactory.Options options)
+	{
+		BitmapRegionDecoder decoder = null;
+		try {
+			decoder = BitmapRegionDecoder.newInstance(path, false);
+			return decoder.decodeRegion(srcRect, options);
+		} catch (Exception e) {
+			Log.w(TAG, "Region decoding failed, falling back to full decode: " + e.getMessage());
+			return null;
+		} finally {
+			if (decoder != null)
+				decoder.recycle();
 		}
 	}
 
@@ -204,13 +167,45 @@ public class ImageUtils {
 		}
 	}
 
-	public static String getBase64FromImage(Image inImage)
+	static final int STREAM_BUFFER_SIZE = 8192;
+
+	/*
+		Returns the image as a base64 encoded PNG. PNG files are encoded straight from disk with a
+		fixed size buffer, other formats are decoded and compressed directly into the encoder.
+	*/
+	public static String getBase64FromImage(Image inImage) throws Exception
 	{
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-		Bitmap bmp = inImage.getBitmap();
-		bmp.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-		bmp.recycle();
-		byte[] byteArray = byteArrayOutputStream.toByteArray();
-		return Base64.encodeToString(byteArray, Base64.DEFAULT);
+		File file = inImage.getFile();
+		BitmapFactory.Options bounds = Image.getBitmapOptionsWithoutDecoding(file.getAbsolutePath());
+		boolean isPng = bounds.outMimeType != null && bounds.outMimeType.toLowerCase().contains("png");
+
+		// Base64 grows the data by 4/3, plus a line break every 76 characters
+		long estimate = isPng ? file.length() : (long)bounds.outWidth * bounds.outHeight;
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE - 8, estimate * 4 / 3 + estimate / 57 + 16));
+		Base64OutputStream out = new Base64OutputStream(encoded, Base64.DEFAULT);
+		try {
+			if (isPng)
+			{
+				FileInputStream in = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buffer)) != -1)
+						out.write(buffer, 0, read);
+				} finally {
+					in.close();
+				}
+			}
+			else
+			{
+				// Re-encoding drops EXIF, so draw the image upright
+				Bitmap bmp = new ImagePipeline(inImage).render();
+				bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
+				BitmapPool.put(bmp);
+			}
+		} finally {
+			out.close();
+		}
+		return encoded.toString("US-ASCII");
 	}
 }
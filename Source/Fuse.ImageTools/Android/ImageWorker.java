@@ -0,0 +1,215 @@
+package com.fuse.camera;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+	Shared executor for image work. Decoding full resolution images is memory and CPU heavy,
+	so instead of starting a thread per call we run a small, bounded number of jobs at a time
+	and let higher priority jobs (e.g. visible thumbnails) jump the queue.
+*/
+public class ImageWorker {
+
+	private static final String TAG = ImageWorker.class.getSimpleName();
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	static final int DEFAULT_MAX_CONCURRENCY = 2;
+
+	public static abstract class Job implements Runnable, Comparable<Job> {
+
+		final String _tag;
+		final int _priority;
+		long _sequence;
+		long _queuedAt;
+		volatile boolean _cancelled;
+
+		public Job(String tag, int priority)
+		{
+			_tag = tag;
+			_priority = priority;
+		}
+
+		public String getTag()
+		{
+			return _tag;
+		}
+
+		public int getPriority()
+		{
+			return _priority;
+		}
+
+		public boolean isCancelled()
+		{
+			return _cancelled;
+		}
+
+		// Runs on the worker thread
+		protected abstract void execute();
+
+		// Called instead of execute() when the job is cancelled before it started
+		protected abstract void onCancelled();
+
+		@Override
+		public final void run()
+		{
+			if (_cancelled)
+				return;
+
+			long start = SystemClock.elapsedRealtime();
+			_totalWaitMs.addAndGet(start - _queuedAt);
+			_active.incrementAndGet();
+			try {
+				execute();
+			} finally {
+				_active.decrementAndGet();
+				_completed.incrementAndGet();
+				_totalRunMs.addAndGet(SystemClock.elapsedRealtime() - start);
+			}
+		}
+
+		@Override
+		public int compareTo(Job other)
+		{
+			if (_priority != other._priority)
+				return _priority > other._priority ? -1 : 1;
+			return _sequence < other._sequence ? -1 : (_sequence == other._sequence ? 0 : 1);
+		}
+	}
+
+	static final AtomicLong _sequenceCounter = new AtomicLong();
+	static final AtomicInteger _active = new AtomicInteger();
+	static final AtomicLong _completed = new AtomicLong();
+	static final AtomicLong _cancelledCount = new AtomicLong();
+	static final AtomicLong _totalWaitMs = new AtomicLong();
+	static final AtomicLong _totalRunMs = new AtomicLong();
+
+	static ThreadPoolExecutor _executor;
+
+	static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if (_executor == null)
+		{
+			int threads = Math.max(1, Math.min(DEFAULT_MAX_CONCURRENCY, Runtime.getRuntime().availableProcessors()));
+			_executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory());
+			_executor.allowCoreThreadTimeOut(true);
+		}
+		return _executor;
+	}
+
+	static class WorkerThreadFactory implements ThreadFactory {
+		final AtomicInteger _count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r)
+		{
+			Thread t = new Thread(new Runnable() { public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				r.run();
+			}}, "ImageWorker-" + _count.incrementAndGet());
+			return t;
+		}
+	}
+
+	public static void submit(Job job)
+	{
+		job._sequence = _sequenceCounter.incrementAndGet();
+		job._queuedAt = SystemClock.elapsedRealtime();
+		getExecutor().execute(job);
+	}
+
+	/*
+		Cancels all queued jobs with the given tag. Jobs that are already running are left alone.
+		Returns the number of jobs that were cancelled.
+	*/
+	public static int cancel(String tag)
+	{
+		if (tag == null)
+			return 0;
+
+		ThreadPoolExecutor executor = getExecutor();
+		List<Job> cancelled = new ArrayList<Job>();
+		for (Runnable r : executor.getQueue().toArray(new Runnable[0]))
+		{
+			Job job = (Job)r;
+			if (tag.equals(job._tag) && executor.remove(job))
+			{
+				job._cancelled = true;
+				cancelled.add(job);
+			}
+		}
+
+		for (Job job : cancelled)
+		{
+			_cancelledCount.incrementAndGet();
+			job.onCancelled();
+		}
+		return cancelled.size();
+	}
+
+	public static synchronized void setMaxConcurrency(int maxConcurrency)
+	{
+		int threads = Math.max(1, maxConcurrency);
+		ThreadPoolExecutor executor = getExecutor();
+		if (threads > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+		else
+		{
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	public static int getMaxConcurrency()
+	{
+		return getExecutor().getMaximumPoolSize();
+	}
+
+	public static int getQueueDepth()
+	{
+		return getExecutor().getQueue().size();
+	}
+
+	public static int getActiveCount()
+	{
+		return _active.get();
+	}
+
+	public static long getCompletedCount()
+	{
+		return _completed.get();
+	}
+
+	public static long getCancelledCount()
+	{
+		return _cancelledCount.get();
+	}
+
+	public static long getAverageWaitMs()
+	{
+		long completed = _completed.get();
+		return completed == 0 ? 0 : _totalWaitMs.get() / completed;
+	}
+
+	public static long getAverageRunMs()
+	{
+		long completed = _completed.get();
+		return completed == 0 ? 0 : _totalRunMs.get() / completed;
+	}
+}
@@ -1,51 +1,248 @@
 package com.fuse.mediapicker;
 
 import android.util.Log;
+import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
 
 class ExifDataCopier {
+	/** Returned by readExifSegment for a JPEG that has no EXIF data. */
+	static final byte[] NO_EXIF = new byte[0];
+
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_APP1 = 0xE1;
+	// Marker and length, followed by "Exif\0\0" and the TIFF header
+	private static final int TIFF_OFFSET = 4 + 6;
+
+	private static final int TAG_IMAGE_WIDTH = 0x0100;
+	private static final int TAG_IMAGE_LENGTH = 0x0101;
+	private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+	private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+	private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+
 	void copyExif(String filePathOri, String filePathDest) {
 		try {
-			ExifInterface oldExif = new ExifInterface(filePathOri);
-			ExifInterface newExif = new ExifInterface(filePathDest);
-
-			List<String> attributes =
-					Arrays.asList(
-							"FNumber",
-							"ExposureTime",
-							"ISOSpeedRatings",
-							"GPSAltitude",
-							"GPSAltitudeRef",
-							"FocalLength",
-							"GPSDateStamp",
-							"WhiteBalance",
-							"GPSProcessingMethod",
-							"GPSTimeStamp",
-							"DateTime",
-							"Flash",
-							"GPSLatitude",
-							"GPSLatitudeRef",
-							"GPSLongitude",
-							"GPSLongitudeRef",
-							"Make",
-							"Model",
-							"Orientation");
-			for (String attribute : attributes) {
-				setIfNotNull(oldExif, newExif, attribute);
-			}
-
-			newExif.saveAttributes();
+			copyExif(new ExifInterface(filePathOri), filePathDest);
+		} catch (Exception ex) {
+			Log.e("ExifDataCopier", "Error preserving Exif data on selected image: " + ex);
+		}
+	}
 
+	/** Copies from an open, seekable file descriptor, so the original doesn't have to be a file of its own. */
+	void copyExif(FileDescriptor fdOri, String filePathDest) {
+		try {
+			copyExif(new ExifInterface(fdOri), filePathDest);
 		} catch (Exception ex) {
 			Log.e("ExifDataCopier", "Error preserving Exif data on selected image: " + ex);
 		}
 	}
 
+	private void copyExif(ExifInterface oldExif, String filePathDest) throws IOException {
+		ExifInterface newExif = new ExifInterface(filePathDest);
+
+		List<String> attributes =
+				Arrays.asList(
+						"FNumber",
+						"ExposureTime",
+						"ISOSpeedRatings",
+						"GPSAltitude",
+						"GPSAltitudeRef",
+						"FocalLength",
+						"GPSDateStamp",
+						"WhiteBalance",
+						"GPSProcessingMethod",
+						"GPSTimeStamp",
+						"DateTime",
+						"Flash",
+						"GPSLatitude",
+						"GPSLatitudeRef",
+						"GPSLongitude",
+						"GPSLongitudeRef",
+						"Make",
+						"Model",
+						"Orientation");
+		for (String attribute : attributes) {
+			setIfNotNull(oldExif, newExif, attribute);
+		}
+
+		newExif.saveAttributes();
+	}
+
 	private static void setIfNotNull(ExifInterface oldExif, ExifInterface newExif, String property) {
 		if (oldExif.getAttribute(property) != null) {
 			newExif.setAttribute(property, oldExif.getAttribute(property));
 		}
 	}
+
+	/**
+	 * Returns the EXIF APP1 segment of a JPEG file, marker included, ready to be inserted into
+	 * another JPEG. Returns {@link #NO_EXIF} for a JPEG without one, and null if the file isn't a
+	 * JPEG or can't be read.
+	 */
+	@Nullable
+	byte[] readExifSegment(String path) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "r");
+			return readExifSegment(file.getChannel());
+		} catch (IOException ex) {
+			return null;
+		} finally {
+			try {
+				if (file != null) file.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/** As readExifSegment(String), reading a seekable file descriptor without moving its position. */
+	@Nullable
+	byte[] readExifSegment(FileDescriptor fd) {
+		try {
+			// Not closed, as that would close fd, which belongs to the caller
+			return readExifSegment(new FileInputStream(fd).getChannel());
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	@Nullable
+	private static byte[] readExifSegment(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		if (!readFully(channel, header, 0) || (header.get(0) & 0xFF) != 0xFF || (header.get(1) & 0xFF) != MARKER_SOI) {
+			return null;
+		}
+
+		long position = 2;
+		while (true) {
+			header.clear();
+			if (!readFully(channel, header, position) || (header.get(0) & 0xFF) != 0xFF) {
+				return NO_EXIF;
+			}
+			int marker = header.get(1) & 0xFF;
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				return NO_EXIF;
+			}
+			int length = ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF);
+			if (marker == MARKER_APP1 && length > TIFF_OFFSET) {
+				ByteBuffer segment = ByteBuffer.allocate(length + 2);
+				if (readFully(channel, segment, position)) {
+					byte[] bytes = segment.array();
+					if (bytes[4] == 'E' && bytes[5] == 'x' && bytes[6] == 'i' && bytes[7] == 'f' && bytes[8] == 0 && bytes[9] == 0) {
+						return bytes;
+					}
+				}
+			}
+			position += length + 2;
+		}
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read <= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Updates the image size tags of an EXIF segment from readExifSegment to the given size.
+	 * Returns false if the segment can't be parsed, in which case it shouldn't be used.
+	 */
+	boolean setDimensions(byte[] segment, int width, int height) {
+		try {
+			ByteBuffer tiff = ByteBuffer.wrap(segment, TIFF_OFFSET, segment.length - TIFF_OFFSET).slice();
+			if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+				tiff.order(ByteOrder.LITTLE_ENDIAN);
+			} else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+				tiff.order(ByteOrder.BIG_ENDIAN);
+			} else {
+				return false;
+			}
+
+			int exifIfd = setDimensions(tiff, tiff.getInt(4), width, height);
+			if (exifIfd > 0) {
+				setDimensions(tiff, exifIfd, width, height);
+			}
+			return true;
+		} catch (IndexOutOfBoundsException ex) {
+			return false;
+		}
+	}
+
+	// Updates the size tags of the IFD at offset and returns the Exif sub-IFD offset it points to, if any
+	private static int setDimensions(ByteBuffer tiff, int offset, int width, int height) {
+		int exifIfd = 0;
+		int count = tiff.getShort(offset) & 0xFFFF;
+		for (int i = 0; i < count; i++) {
+			int entry = offset + 2 + i * 12;
+			int tag = tiff.getShort(entry) & 0xFFFF;
+			int type = tiff.getShort(entry + 2) & 0xFFFF;
+			int value;
+			if (tag == TAG_IMAGE_WIDTH || tag == TAG_PIXEL_X_DIMENSION) {
+				value = width;
+			} else if (tag == TAG_IMAGE_LENGTH || tag == TAG_PIXEL_Y_DIMENSION) {
+				value = height;
+			} else {
+				if (tag == TAG_EXIF_IFD_POINTER) {
+					exifIfd = tiff.getInt(entry + 8);
+				}
+				continue;
+			}
+			if (type == TYPE_SHORT) {
+				tiff.putShort(entry + 8, (short)value);
+			} else if (type == TYPE_LONG) {
+				tiff.putInt(entry + 8, value);
+			}
+		}
+		return exifIfd;
+	}
+
+	/**
+	 * Wraps the stream a JPEG encoder writes to, so exifSegment is inserted right after the
+	 * start of image marker.
+	 */
+	OutputStream insertExifSegment(OutputStream out, final byte[] exifSegment) {
+		return new FilterOutputStream(out) {
+			private int written;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (written < 2 && len > 0) {
+					int head = Math.min(2 - written, len);
+					out.write(b, off, head);
+					written += head;
+					off += head;
+					len -= head;
+					if (written == 2) {
+						out.write(exifSegment);
+					}
+				}
+				if (len > 0) {
+					out.write(b, off, len);
+				}
+			}
+		};
+	}
 }
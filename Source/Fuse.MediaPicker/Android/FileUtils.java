@@ -3,15 +3,25 @@ package com.fuse.mediapicker;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.webkit.MimeTypeMap;
+import androidx.annotation.Nullable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
 
 class FileUtils {
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
+	/**
+	 * Copies the content at uri into a temporary file that outlives the URI grant, and returns its
+	 * path. Seekable content is copied channel to channel, so the kernel moves the data.
+	 */
 	String getPathFromUri(final Context context, final Uri uri) {
 		File file = null;
 		InputStream inputStream = null;
@@ -19,13 +29,23 @@ class FileUtils {
 		boolean success = false;
 		try {
 			String extension = getImageExtension(context, uri);
-			inputStream = context.getContentResolver().openInputStream(uri);
 			file = File.createTempFile("media_picker", extension, context.getCacheDir());
 			file.deleteOnExit();
-			outputStream = new FileOutputStream(file);
-			if (inputStream != null) {
-				copy(inputStream, outputStream);
+			ParcelFileDescriptor pfd = openSeekableFileDescriptor(context, uri);
+			if (pfd != null) {
+				FileInputStream fileInputStream = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+				FileOutputStream fileOutputStream = new FileOutputStream(file);
+				inputStream = fileInputStream;
+				outputStream = fileOutputStream;
+				transfer(fileInputStream.getChannel(), fileOutputStream.getChannel());
 				success = true;
+			} else {
+				inputStream = context.getContentResolver().openInputStream(uri);
+				outputStream = new FileOutputStream(file);
+				if (inputStream != null) {
+					copy(inputStream, outputStream);
+					success = true;
+				}
 			}
 		} catch (IOException ignored) {
 		} finally {
@@ -45,6 +65,37 @@ class FileUtils {
 		return success ? file.getPath() : null;
 	}
 
+	/**
+	 * Opens uri for reading in place. Returns null unless the provider hands out a regular file,
+	 * which can be decoded more than once without a copy. The caller must close the descriptor.
+	 */
+	@Nullable
+	ParcelFileDescriptor openSeekableFileDescriptor(final Context context, final Uri uri) {
+		ParcelFileDescriptor pfd;
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+		} catch (Exception e) {
+			return null;
+		}
+		if (pfd == null) {
+			return null;
+		}
+		// Pipes and sockets have no size and can't be rewound
+		if (pfd.getStatSize() < 0) {
+			try {
+				pfd.close();
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+		return pfd;
+	}
+
+	/** A file name for derived files of the content at uri, such as a scaled copy. */
+	String getTempFileName(final Context context, final Uri uri) {
+		return "media_picker" + UUID.randomUUID().toString() + getImageExtension(context, uri);
+	}
+
 	private static String getImageExtension(Context context, Uri uriImage) {
 		String extension = null;
 
@@ -71,11 +122,23 @@ class FileUtils {
 	}
 
 	private static void copy(InputStream in, OutputStream out) throws IOException {
-		final byte[] buffer = new byte[4 * 1024];
+		final byte[] buffer = new byte[COPY_BUFFER_SIZE];
 		int bytesRead;
 		while ((bytesRead = in.read(buffer)) != -1) {
 			out.write(buffer, 0, bytesRead);
 		}
 		out.flush();
 	}
+
+	private static void transfer(FileChannel in, FileChannel out) throws IOException {
+		long size = in.size();
+		long position = 0;
+		while (position < size) {
+			long transferred = in.transferTo(position, size - position, out);
+			if (transferred <= 0) {
+				throw new IOException("Copy ended after " + position + " of " + size + " bytes");
+			}
+			position += transferred;
+		}
+	}
 }
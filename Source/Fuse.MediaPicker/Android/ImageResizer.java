@@ -2,58 +2,148 @@ package com.fuse.mediapicker;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
+import com.fuse.android.BitmapPool;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 class ImageResizer {
+	private static final String TAG = "ImageResizer";
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
 	private final File externalFilesDirectory;
 	private final ExifDataCopier exifDataCopier;
 
+	/** The outcome of one picked image: its path, whether it was scaled, its sizes and timings. */
+	static final class Result {
+		final String path;
+		final boolean scaled;
+		final int sourceWidth;
+		final int sourceHeight;
+		final int width;
+		final int height;
+		// Decoding includes scaling to the target size; encoding includes writing the file and its EXIF
+		final long decodeMs;
+		final long encodeMs;
+
+		Result(String path, boolean scaled, int sourceWidth, int sourceHeight, int width, int height, long decodeMs, long encodeMs) {
+			this.path = path;
+			this.scaled = scaled;
+			this.sourceWidth = sourceWidth;
+			this.sourceHeight = sourceHeight;
+			this.width = width;
+			this.height = height;
+			this.decodeMs = decodeMs;
+			this.encodeMs = encodeMs;
+		}
+
+		static Result kept(String path, BitmapFactory.Options bounds) {
+			return new Result(path, false, bounds.outWidth, bounds.outHeight, bounds.outWidth, bounds.outHeight, 0, 0);
+		}
+
+		String toJson() {
+			JSONObject json = new JSONObject();
+			try {
+				json.put("decision", scaled ? "scaled" : "kept");
+				json.put("sourceWidth", sourceWidth);
+				json.put("sourceHeight", sourceHeight);
+				json.put("width", width);
+				json.put("height", height);
+				json.put("decodeMs", decodeMs);
+				json.put("encodeMs", encodeMs);
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			return json.toString();
+		}
+	}
+
 	ImageResizer(File externalFilesDirectory, ExifDataCopier exifDataCopier) {
 		this.externalFilesDirectory = externalFilesDirectory;
 		this.exifDataCopier = exifDataCopier;
 	}
 
 	/**
-	 * If necessary, resizes the image located in imagePath and then returns the path for the scaled
-	 * image.
+	 * If necessary, resizes the image located in imagePath and then returns the result with the path
+	 * for the scaled image.
 	 *
-	 * <p>If no resizing is needed, returns the path for the original image.
+	 * <p>If no resizing is needed, the result has the path for the original image. The decision is
+	 * made from the image bounds alone, so the original is only decoded when it has to be rewritten.
 	 */
-	String resizeImageIfNeeded(
+	Result resizeImageIfNeeded(
 			String imagePath,
 			@Nullable Double maxWidth,
 			@Nullable Double maxHeight,
 			@Nullable Integer imageQuality) {
-		Bitmap bmp = decodeFile(imagePath);
-		if (bmp == null) {
+		BitmapFactory.Options bounds = decodeBounds(imagePath, null);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
 			return null;
 		}
-		boolean shouldScale =
-				maxWidth != null || maxHeight != null || isImageQualityValid(imageQuality);
-		if (!shouldScale) {
-			return imagePath;
+		if (!shouldScale(maxWidth, maxHeight, imageQuality)) {
+			return Result.kept(imagePath, bounds);
 		}
+		String[] pathParts = imagePath.split("/");
+		String imageName = pathParts[pathParts.length - 1];
+		return resizeImage(imagePath, null, bounds, maxWidth, maxHeight, imageQuality, imageName);
+	}
+
+	/**
+	 * Resizes the image read in place from fd, which must be seekable, and returns the result with the
+	 * path of the scaled image. Only use this when {@link #shouldScale} is true, as there is no
+	 * original path to fall back to.
+	 */
+	Result resizeImage(
+			FileDescriptor fd,
+			String imageName,
+			@Nullable Double maxWidth,
+			@Nullable Double maxHeight,
+			@Nullable Integer imageQuality) {
+		BitmapFactory.Options bounds = decodeBounds(null, fd);
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+			return null;
+		}
+		return resizeImage(null, fd, bounds, maxWidth, maxHeight, imageQuality, imageName);
+	}
+
+	boolean shouldScale(
+			@Nullable Double maxWidth, @Nullable Double maxHeight, @Nullable Integer imageQuality) {
+		return maxWidth != null || maxHeight != null || isImageQualityValid(imageQuality);
+	}
+
+	private Result resizeImage(
+			String imagePath,
+			FileDescriptor fd,
+			BitmapFactory.Options bounds,
+			Double maxWidth,
+			Double maxHeight,
+			Integer imageQuality,
+			String imageName) {
 		try {
-			String[] pathParts = imagePath.split("/");
-			String imageName = pathParts[pathParts.length - 1];
-			File file = resizedImage(bmp, maxWidth, maxHeight, imageQuality, imageName);
-			copyExif(imagePath, file.getPath());
-			return file.getPath();
+			return resizedImage(imagePath, fd, bounds, maxWidth, maxHeight, imageQuality, imageName);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private File resizedImage(
-			Bitmap bmp, Double maxWidth, Double maxHeight, Integer imageQuality, String outputImageName)
+	private Result resizedImage(
+			String imagePath,
+			FileDescriptor fd,
+			BitmapFactory.Options bounds,
+			Double maxWidth,
+			Double maxHeight,
+			Integer imageQuality,
+			String outputImageName)
 			throws IOException {
-		double originalWidth = bmp.getWidth() * 1.0;
-		double originalHeight = bmp.getHeight() * 1.0;
+		double originalWidth = bounds.outWidth * 1.0;
+		double originalHeight = bounds.outHeight * 1.0;
 
 		if (!isImageQualityValid(imageQuality)) {
 			imageQuality = 100;
@@ -94,10 +184,49 @@ class ImageResizer {
 			}
 		}
 
-		Bitmap scaledBmp = createScaledBitmap(bmp, width.intValue(), height.intValue(), false);
-		File file =
-				createImageOnExternalDirectory("/scaled_" + outputImageName, scaledBmp, imageQuality);
-		return file;
+		int targetWidth = Math.max(1, width.intValue());
+		int targetHeight = Math.max(1, height.intValue());
+
+		// Let the decoder do most of the downscaling, then scale the rest of the way
+		long decodeStart = SystemClock.elapsedRealtime();
+		int sampleSize = calculateInSampleSize(bounds, targetWidth, targetHeight);
+		Bitmap bmp = decodeFile(imagePath, fd, bounds, sampleSize);
+		if (bmp == null) {
+			return null;
+		}
+		Bitmap scaledBmp = bmp;
+		if (bmp.getWidth() != targetWidth || bmp.getHeight() != targetHeight) {
+			scaledBmp = createScaledBitmap(bmp, targetWidth, targetHeight, false);
+		}
+		try {
+			// Carry the original's EXIF into the encode, so the output is written only once
+			long encodeStart = SystemClock.elapsedRealtime();
+			byte[] exifSegment = imagePath != null
+					? exifDataCopier.readExifSegment(imagePath)
+					: exifDataCopier.readExifSegment(fd);
+			boolean spliceExif = exifSegment != null
+					&& exifSegment != ExifDataCopier.NO_EXIF
+					&& !scaledBmp.hasAlpha()
+					&& exifDataCopier.setDimensions(exifSegment, targetWidth, targetHeight);
+			File file = createImageOnExternalDirectory(
+					"/scaled_" + outputImageName, scaledBmp, imageQuality, spliceExif ? exifSegment : null);
+			// A JPEG without EXIF has nothing to copy
+			if (!spliceExif && exifSegment != ExifDataCopier.NO_EXIF) {
+				if (imagePath != null) {
+					exifDataCopier.copyExif(imagePath, file.getPath());
+				} else {
+					exifDataCopier.copyExif(fd, file.getPath());
+				}
+			}
+			return new Result(
+					file.getPath(), true, bounds.outWidth, bounds.outHeight, targetWidth, targetHeight,
+					encodeStart - decodeStart, SystemClock.elapsedRealtime() - encodeStart);
+		} finally {
+			if (scaledBmp != bmp) {
+				BitmapPool.put(scaledBmp);
+			}
+			BitmapPool.put(bmp);
+		}
 	}
 
 	private File createFile(File externalFilesDirectory, String child) {
@@ -112,12 +241,38 @@ class ImageResizer {
 		return new FileOutputStream(imageFile);
 	}
 
-	private void copyExif(String filePathOri, String filePathDest) {
-		exifDataCopier.copyExif(filePathOri, filePathDest);
+	// Reads from imagePath, or from fd if imagePath is null
+	private BitmapFactory.Options decodeBounds(String imagePath, FileDescriptor fd) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		if (imagePath != null) {
+			BitmapFactory.decodeFile(imagePath, options);
+		} else {
+			BitmapFactory.decodeFileDescriptor(fd, null, options);
+		}
+		return options;
 	}
 
-	private Bitmap decodeFile(String path) {
-		return BitmapFactory.decodeFile(path);
+	private Bitmap decodeFile(String imagePath, FileDescriptor fd, BitmapFactory.Options bounds, int sampleSize) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inMutable = true;
+		int decodedWidth = (bounds.outWidth + sampleSize - 1) / sampleSize;
+		int decodedHeight = (bounds.outHeight + sampleSize - 1) / sampleSize;
+		if (imagePath != null) {
+			return BitmapPool.decodeFile(imagePath, options, decodedWidth, decodedHeight);
+		}
+		return BitmapPool.decodeFileDescriptor(fd, options, decodedWidth, decodedHeight);
+	}
+
+	/** Largest power of two sample size that keeps the decoded image at least the requested size. */
+	private int calculateInSampleSize(BitmapFactory.Options bounds, int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		while ((bounds.outWidth / (inSampleSize * 2)) >= reqWidth
+				&& (bounds.outHeight / (inSampleSize * 2)) >= reqHeight) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
 	}
 
 	private Bitmap createScaledBitmap(Bitmap bmp, int width, int height, boolean filter) {
@@ -128,23 +283,29 @@ class ImageResizer {
 		return imageQuality != null && imageQuality > 0 && imageQuality < 100;
 	}
 
-	private File createImageOnExternalDirectory(String name, Bitmap bitmap, int imageQuality)
+	/** Writes bitmap, with exifSegment inserted into the JPEG if it isn't null. */
+	private File createImageOnExternalDirectory(
+			String name, Bitmap bitmap, int imageQuality, @Nullable byte[] exifSegment)
 			throws IOException {
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 		boolean saveAsPNG = bitmap.hasAlpha();
 		if (saveAsPNG) {
 			Log.d(
-					"ImageResizer",
+					TAG,
 					"media_picker: compressing is not supported for type PNG. Returning the image with original quality");
 		}
-		bitmap.compress(
-				saveAsPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
-				imageQuality,
-				outputStream);
 		File imageFile = createFile(externalFilesDirectory, name);
-		FileOutputStream fileOutput = createOutputStream(imageFile);
-		fileOutput.write(outputStream.toByteArray());
-		fileOutput.close();
+		OutputStream outputStream = new BufferedOutputStream(createOutputStream(imageFile), OUTPUT_BUFFER_SIZE);
+		if (exifSegment != null && !saveAsPNG) {
+			outputStream = exifDataCopier.insertExifSegment(outputStream, exifSegment);
+		}
+		try {
+			bitmap.compress(
+					saveAsPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+					imageQuality,
+					outputStream);
+		} finally {
+			outputStream.close();
+		}
 		return imageFile;
 	}
 }
@@ -9,6 +9,7 @@ import androidx.annotation.VisibleForTesting;
 import java.io.File;
 import java.util.Map;
 import com.foreign.Uno.Action_String;
+import com.foreign.Uno.Action_String_String;
 
 @SuppressWarnings("deprecation")
 public class MediaPicker {
@@ -40,11 +41,12 @@ public class MediaPicker {
 		}
 	}
 
-	public void pickImage(Map<String, Object> arguments, Action_String result, Action_String reject) {
+	public void pickImage(Map<String, Object> arguments, Action_String result, Action_String reject, Action_String_String progress) {
 		this.setupCamera(arguments);
 		mediaPickerImpl.setArguments(arguments);
 		mediaPickerImpl.setResult(result);
 		mediaPickerImpl.setReject(reject);
+		mediaPickerImpl.setProgress(progress);
 		int imageSource = (int)arguments.get("source");
 		switch (imageSource) {
 			case SOURCE_GALLERY:
@@ -58,11 +60,12 @@ public class MediaPicker {
 		}
 	}
 
-	public void pickMultiImage(Map<String, Object> arguments, Action_String result, Action_String reject) {
+	public void pickMultiImage(Map<String, Object> arguments, Action_String result, Action_String reject, Action_String_String progress) {
 		this.setupCamera(arguments);
 		mediaPickerImpl.setArguments(arguments);
 		mediaPickerImpl.setResult(result);
 		mediaPickerImpl.setReject(reject);
+		mediaPickerImpl.setProgress(progress);
 		mediaPickerImpl.launchMultiPickImageFromGalleryIntent();
 	}
 
@@ -10,6 +10,9 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.app.ActivityCompat;
@@ -20,7 +23,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import com.foreign.Uno.Action_String;
+import com.foreign.Uno.Action_String_String;
 import android.widget.Toast;
 
 enum CameraDevice {
@@ -38,6 +44,12 @@ public class MediaPickerImpl {
 	static final int REQUEST_CODE_CHOOSE_VIDEO_FROM_GALLERY = 2352;
 	static final int REQUEST_CODE_TAKE_VIDEO_WITH_CAMERA = 2353;
 	static final int REQUEST_CAMERA_VIDEO_PERMISSION = 235;
+	// Each worker holds at most one subsampled image in memory, so keep the pool small
+	static final int MAX_PROCESSING_THREADS = 3;
+	private static final ExecutorService processingExecutor =
+			Executors.newFixedThreadPool(
+					Math.max(1, Math.min(MAX_PROCESSING_THREADS, Runtime.getRuntime().availableProcessors())));
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 	private final ImageResizer imageResizer;
 	private final PermissionManager permissionManager;
 	private final FileUriResolver fileUriResolver;
@@ -67,6 +79,7 @@ public class MediaPickerImpl {
 	private Uri pendingCameraMediaUri;
 	private Action_String result;
 	private Action_String reject;
+	private Action_String_String progress;
 	private Map<String, Object> arguments;
 	private static MediaPickerImpl instance;
 
@@ -159,6 +172,10 @@ public class MediaPickerImpl {
 		this.reject = reject;
 	}
 
+	void setProgress(Action_String_String progress) {
+		this.progress = progress;
+	}
+
 	CameraDevice getCameraDevice() {
 		return cameraDevice;
 	}
@@ -357,8 +374,23 @@ public class MediaPickerImpl {
 
 	private void handleChooseImageResult(int resultCode, Intent data) {
 		if (resultCode == Activity.RESULT_OK && data != null) {
-			String path = fileUtils.getPathFromUri(com.fuse.Activity.getRootActivity(), data.getData());
-			handleImageResult(path, false);
+			final Uri uri = data.getData();
+			final Map<String, Object> arguments = this.arguments;
+			processingExecutor.execute(
+					new Runnable() {
+						@Override
+						public void run() {
+							final ImageResizer.Result image = getPickedImage(uri, arguments);
+							mainHandler.post(
+									new Runnable() {
+										@Override
+										public void run() {
+											reportPicked(progress, image);
+											finishWithSuccess(image != null ? image.path : null);
+										}
+									});
+						}
+					});
 			return;
 		}
 
@@ -368,7 +400,7 @@ public class MediaPickerImpl {
 
 	private void handleChooseMultiImageResult(int resultCode, Intent intent) {
 		if (resultCode == Activity.RESULT_OK && intent != null) {
-			ArrayList<String> paths = new ArrayList<>();
+			ArrayList<Uri> uris = new ArrayList<>();
 			if (intent.getClipData() != null) {
 				int maxImages = (int)this.arguments.get("maxImages");
 				if (maxImages > 0 && intent.getClipData().getItemCount() > maxImages) {
@@ -378,12 +410,12 @@ public class MediaPickerImpl {
 					return;
 				}
 				for (int i = 0; i < intent.getClipData().getItemCount(); i++) {
-					paths.add(fileUtils.getPathFromUri(com.fuse.Activity.getRootActivity(), intent.getClipData().getItemAt(i).getUri()));
+					uris.add(intent.getClipData().getItemAt(i).getUri());
 				}
 			} else {
-				paths.add(fileUtils.getPathFromUri(com.fuse.Activity.getRootActivity(), intent.getData()));
+				uris.add(intent.getData());
 			}
-			handleMultiImageResult(paths, false);
+			handleMultiImageResult(uris);
 			return;
 		}
 
@@ -430,39 +462,137 @@ public class MediaPickerImpl {
 		finishWithError("User cancelled choosing a picture");
 	}
 
-	private void handleMultiImageResult(ArrayList<String> paths, boolean shouldDeleteOriginalIfScaled) {
-		if (this.arguments != null) {
-			ArrayList<String> finalPath = new ArrayList<>();
-			for (int i = 0; i < paths.size(); i++) {
-				String finalImagePath = getResizedImagePath(paths.get(i));
-				if (finalImagePath != null && !finalImagePath.equals(paths.get(i)) && shouldDeleteOriginalIfScaled) {
-					new File(paths.get(i)).delete();
-				}
-				finalPath.add(i, finalImagePath);
-			}
-			finishWithListSuccess(finalPath);
-		} else {
-			finishWithListSuccess(paths);
+	/**
+	 * Copies and resizes the picked images on {@link #processingExecutor}, so the UI stays
+	 * responsive for large picks. Each path is passed to the progress callback as soon as it and
+	 * all images before it are done, and the full list is delivered in pick order at the end.
+	 */
+	private void handleMultiImageResult(final ArrayList<Uri> uris) {
+		final Action_String result = this.result;
+		final Action_String reject = this.reject;
+		final Action_String_String progress = this.progress;
+		final Map<String, Object> arguments = this.arguments;
+		if (uris.isEmpty()) {
+			deliverListSuccess(result, new ArrayList<String>());
+			return;
+		}
+		final ImageResizer.Result[] images = new ImageResizer.Result[uris.size()];
+		final boolean[] done = new boolean[uris.size()];
+		final int[] delivered = {0};
+		final boolean[] failed = {false};
+
+		for (int i = 0; i < uris.size(); i++) {
+			final int index = i;
+			processingExecutor.execute(
+					new Runnable() {
+						@Override
+						public void run() {
+							ImageResizer.Result pickedImage = null;
+							Exception error = null;
+							try {
+								pickedImage = getPickedImage(uris.get(index), arguments);
+							} catch (Exception e) {
+								error = e;
+							}
+							final ImageResizer.Result image = pickedImage;
+							final Exception imageError = error;
+							mainHandler.post(
+									new Runnable() {
+										@Override
+										public void run() {
+											if (failed[0]) {
+												return;
+											}
+											if (imageError != null) {
+												failed[0] = true;
+												if (reject != null) {
+													reject.run("Failed to process picked image: " + imageError.getMessage());
+												}
+												return;
+											}
+											images[index] = image;
+											done[index] = true;
+											while (delivered[0] < done.length && done[delivered[0]]) {
+												reportPicked(progress, images[delivered[0]]);
+												delivered[0]++;
+											}
+											if (delivered[0] == done.length) {
+												ArrayList<String> paths = new ArrayList<String>();
+												for (ImageResizer.Result picked : images) {
+													paths.add(picked != null ? picked.path : null);
+												}
+												deliverListSuccess(result, paths);
+											}
+										}
+									});
+						}
+					});
 		}
 	}
 
 	private void handleImageResult(String path, boolean shouldDeleteOriginalIfScaled) {
 		if (this.arguments != null) {
-			String finalImagePath = getResizedImagePath(path);
+			ImageResizer.Result image = getResizedImage(path, this.arguments);
 			//delete original file if scaled
-			if (finalImagePath != null && !finalImagePath.equals(path) && shouldDeleteOriginalIfScaled) {
+			if (image != null && image.scaled && shouldDeleteOriginalIfScaled) {
 				new File(path).delete();
 			}
-			finishWithSuccess(finalImagePath);
+			reportPicked(progress, image);
+			finishWithSuccess(image != null ? image.path : null);
 		} else {
 			finishWithSuccess(path);
 		}
 	}
 
-	private String getResizedImagePath(String path) {
-		Double maxWidth = (double)this.arguments.get("maxWidth");
-		Double maxHeight = (double)this.arguments.get("maxHeight");
-		Integer imageQuality = (int)this.arguments.get("imageQuality");
+	/**
+	 * Returns the picked image, with a path that stays valid after the URI grant ends. When the image
+	 * is going to be rewritten anyway it is decoded in place from the provider's file descriptor, so
+	 * the original is never copied.
+	 */
+	private ImageResizer.Result getPickedImage(Uri uri, Map<String, Object> arguments) {
+		final Activity activity = com.fuse.Activity.getRootActivity();
+		if (arguments != null) {
+			Double maxWidth = (double)arguments.get("maxWidth");
+			Double maxHeight = (double)arguments.get("maxHeight");
+			Integer imageQuality = (int)arguments.get("imageQuality");
+			if (imageResizer.shouldScale(maxWidth, maxHeight, imageQuality)) {
+				ParcelFileDescriptor pfd = fileUtils.openSeekableFileDescriptor(activity, uri);
+				if (pfd != null) {
+					try {
+						ImageResizer.Result image = imageResizer.resizeImage(
+								pfd.getFileDescriptor(), fileUtils.getTempFileName(activity, uri), maxWidth, maxHeight, imageQuality);
+						if (image != null) {
+							return image;
+						}
+					} finally {
+						try {
+							pfd.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}
+			}
+		}
+
+		String path = fileUtils.getPathFromUri(activity, uri);
+		if (path == null) {
+			return null;
+		}
+		if (arguments == null) {
+			return imageResizer.resizeImageIfNeeded(path, null, null, null);
+		}
+		ImageResizer.Result image = getResizedImage(path, arguments);
+		if (image != null && image.scaled) {
+			// The copy was only needed as a source for the scaled image
+			new File(path).delete();
+		}
+		return image;
+	}
+
+	private ImageResizer.Result getResizedImage(String path, Map<String, Object> arguments) {
+		Double maxWidth = (double)arguments.get("maxWidth");
+		Double maxHeight = (double)arguments.get("maxHeight");
+		Integer imageQuality = (int)arguments.get("imageQuality");
 
 		return imageResizer.resizeImageIfNeeded(path, maxWidth, maxHeight, imageQuality);
 	}
@@ -471,6 +601,13 @@ public class MediaPickerImpl {
 		finishWithSuccess(path);
 	}
 
+	// Passes the path and a JSON description of how the image was processed to the imagePicked event
+	private static void reportPicked(Action_String_String progress, ImageResizer.Result image) {
+		if (progress != null && image != null) {
+			progress.run(image.path, image.toJson());
+		}
+	}
+
 	private void finishWithSuccess(String imagePath) {
 		if (result == null) {
 			return;
@@ -479,6 +616,10 @@ public class MediaPickerImpl {
 	}
 
 	private void finishWithListSuccess(ArrayList<String> imagePaths) {
+		deliverListSuccess(result, imagePaths);
+	}
+
+	private static void deliverListSuccess(Action_String result, ArrayList<String> imagePaths) {
 		if (result == null) {
 			return;
 		}
@@ -10,5 +10,6 @@ public enum SensorType {
     STEP_COUNTER,
     PRESSURE,
     BATTERY,
-    CONNECTION_STATE
+    CONNECTION_STATE,
+    ORIENTATION
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.fuse.sensorkit;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+    A fixed-size ring of sensor samples, written by the sensor thread and drained by Uno once per frame.
+
+    Everything is allocated up front and samples are stored as primitives, so writing a sample
+    allocates nothing and never keeps a reference to SensorEvent.values, which Android reuses.
+    There is exactly one writer and one reader. The writer never waits: when the reader falls
+    about CAPACITY samples behind, the oldest samples are overwritten and counted as dropped,
+    so the reader always gets the latest ones. The reader detects samples overwritten while it
+    was copying them by checking the write position again afterwards.
+
+    Drained samples are written to a little-endian ByteBuffer as SAMPLE_SIZE bytes each: x, y and z
+    as floats, then the timestamp in milliseconds as a double.
+*/
+public final class SensorSampleBuffer
+{
+    public static final int CAPACITY = 512;
+    public static final int VALUES_PER_SAMPLE = 3;
+    public static final int SAMPLE_SIZE = VALUES_PER_SAMPLE * 4 + 8;
+
+    private final float[] mValues = new float[CAPACITY * VALUES_PER_SAMPLE];
+    private final long[] mTimestamps = new long[CAPACITY];
+
+    // Samples written so far. Only the writer changes it; the volatile write publishes the sample.
+    private volatile long mWritten;
+    // Samples read or dropped so far, only touched by the reader
+    private long mRead;
+    private long mDropped;
+    private long mCoalesced;
+
+    // Writer side
+    public void write(float x, float y, float z, long timestampNanos) {
+        long written = mWritten;
+        int slot = (int)(written % CAPACITY);
+        int offset = slot * VALUES_PER_SAMPLE;
+        mValues[offset] = x;
+        mValues[offset + 1] = y;
+        mValues[offset + 2] = z;
+        mTimestamps[slot] = timestampNanos;
+        mWritten = written + 1;
+    }
+
+    /*
+        Reader side. Copies every sample written since the last drain into out, which must hold
+        CAPACITY samples, and returns how many were copied. With latestOnly, older samples are
+        skipped and at most the newest one is copied.
+    */
+    public int drainTo(ByteBuffer out, boolean latestOnly) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        long written = mWritten;
+        long first = Math.max(mRead, written - CAPACITY);
+        mDropped += first - mRead;
+        if (latestOnly && written - first > 1) {
+            mCoalesced += written - 1 - first;
+            first = written - 1;
+        }
+
+        int count = (int)(written - first);
+        for (int i = 0; i < count; i++) {
+            int slot = (int)((first + i) % CAPACITY);
+            int valueOffset = slot * VALUES_PER_SAMPLE;
+            int outOffset = i * SAMPLE_SIZE;
+            out.putFloat(outOffset, mValues[valueOffset]);
+            out.putFloat(outOffset + 4, mValues[valueOffset + 1]);
+            out.putFloat(outOffset + 8, mValues[valueOffset + 2]);
+            out.putDouble(outOffset + 12, mTimestamps[slot] / 1000000.0);
+        }
+
+        // The writer may have lapped the oldest samples while they were copied; those are torn
+        long overwritten = mWritten - CAPACITY - first + 1;
+        if (overwritten > 0) {
+            int skip = (int)Math.min(overwritten, count);
+            int skipBytes = skip * SAMPLE_SIZE;
+            for (int b = 0; b < (count - skip) * SAMPLE_SIZE; b++)
+                out.put(b, out.get(b + skipBytes));
+            mDropped += skip;
+            count -= skip;
+        }
+
+        mRead = written;
+        return count;
+    }
+
+    // Samples the reader never got because the writer overtook it
+    public long getDropped() {
+        return mDropped;
+    }
+
+    // Samples skipped by latestOnly drains
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    // Reader side, while the writer is stopped
+    public void clear() {
+        mRead = mWritten;
+    }
+}
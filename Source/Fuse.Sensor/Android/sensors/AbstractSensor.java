@@ -6,18 +6,37 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
-import com.foreign.Uno.Action_Object;
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.nio.ByteBuffer;
 
 public abstract class AbstractSensor {
 
+    // Passed as samplingPeriodUs to use SensorManager.SENSOR_DELAY_NORMAL
+    public static final int DEFAULT_SAMPLING_PERIOD = -1;
+
+    private static Handler sHandler;
+
+    // Sensor events are received off the UI thread, which only drains the samples once per frame
+    protected static synchronized Handler handler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("FuseSensors");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
     private final SensorManager mSensorManager;
     private final Sensor mSensor;
+    private final SensorType mSensorType;
     private final SensorEventListener mSensorEventListener;
+    private final SensorSampleBuffer mSamples = new SensorSampleBuffer();
+    private final SensorSampleFilter mFilter = new SensorSampleFilter(mSamples);
     protected boolean isSensing = false;
-    private Action_Object onDataChanged;
 
-    public AbstractSensor(final SensorType sensorType, Action_Object onDataChanged) {
-        this.onDataChanged = onDataChanged;
+    public AbstractSensor(final SensorType sensorType) {
+        mSensorType = sensorType;
         mSensorManager = (SensorManager) com.fuse.Activity.getRootActivity().getSystemService(Context.SENSOR_SERVICE);
         mSensor = mSensorManager.getDefaultSensor(getSensorType(sensorType));
 
@@ -30,19 +49,44 @@ public abstract class AbstractSensor {
 
             @Override
             public void onSensorChanged(SensorEvent event) {
-                SensorData data = buildData(event);
-                if (AbstractSensor.this.onDataChanged != null)
-                    AbstractSensor.this.onDataChanged.run(data);
+                writeSample(event, mFilter);
             }
         };
     }
 
     public void start() throws Exception {
-        this.isSensing = true;
-        boolean status = mSensorManager.registerListener(mSensorEventListener, mSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        start(DEFAULT_SAMPLING_PERIOD, 0);
+    }
+
+    /*
+        Starts sensing with a sampling period in microseconds, or DEFAULT_SAMPLING_PERIOD. With a
+        maxReportLatencyUs above 0 the sensor may hold samples in its hardware FIFO for that long
+        before reporting them, so the application processor can sleep in between; the samples
+        then arrive together in the next drain. Restarts the sensor if it is already sensing.
+    */
+    public void start(int samplingPeriodUs, int maxReportLatencyUs) throws Exception {
+        start(samplingPeriodUs, maxReportLatencyUs, SensorSampleFilter.NONE, 0, 0);
+    }
+
+    /*
+        Like start(samplingPeriodUs, maxReportLatencyUs), and also filters the samples and averages
+        them to averageRateHz on the sensor thread, as described by SensorSampleFilter.
+    */
+    public void start(int samplingPeriodUs, int maxReportLatencyUs, int filter, float cutoffHz, float averageRateHz) throws Exception {
+        if (isSensing)
+            stop();
+        mFilter.configure(filter, cutoffHz, averageRateHz);
+        mSamples.clear();
+        int samplingPeriod = samplingPeriodUs < 0 ? SensorManager.SENSOR_DELAY_NORMAL : samplingPeriodUs;
+        boolean status;
+        if (maxReportLatencyUs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            status = mSensorManager.registerListener(mSensorEventListener, mSensor, samplingPeriod, maxReportLatencyUs, handler());
+        else
+            status = mSensorManager.registerListener(mSensorEventListener, mSensor, samplingPeriod, handler());
         if (!status) {
             throw new Exception(getSensorName() + " sensor is not available.");
         }
+        this.isSensing = true;
     }
 
     public void stop() {
@@ -50,7 +94,32 @@ public abstract class AbstractSensor {
         this.isSensing = false;
     }
 
-    protected abstract SensorData buildData(SensorEvent event);
+    /*
+        Copies the samples received since the last call into out, as described by
+        SensorSampleBuffer, and returns how many there were. With latestOnly only the newest of
+        them is copied. Call from one thread only.
+    */
+    public int drainTo(ByteBuffer out, boolean latestOnly) {
+        return mSamples.drainTo(out, latestOnly);
+    }
+
+    // Samples lost because they weren't drained in time
+    public long getDroppedSampleCount() {
+        return mSamples.getDropped();
+    }
+
+    public SensorType getSensorType() {
+        return mSensorType;
+    }
+
+    protected SensorManager getSensorManager() {
+        return mSensorManager;
+    }
+
+    // Called on the sensor thread for every event; must not allocate or keep event.values
+    protected void writeSample(SensorEvent event, SensorSampleFilter samples) {
+        samples.process(event.values[0], event.values[1], event.values[2], event.timestamp);
+    }
 
     protected abstract String getSensorName();
 
@@ -58,6 +127,36 @@ public abstract class AbstractSensor {
         return isSensing;
     }
 
+    public boolean isAvailable() {
+        return mSensor != null;
+    }
+
+    // Shortest sampling period in microseconds, 0 if the sensor only reports changes
+    public int getMinDelay() {
+        return mSensor != null ? mSensor.getMinDelay() : 0;
+    }
+
+    // Longest sampling period in microseconds, 0 if unknown
+    public int getMaxDelay() {
+        if (mSensor == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return 0;
+        return mSensor.getMaxDelay();
+    }
+
+    // Samples the hardware FIFO can hold, shared with other sensors; 0 if the sensor can't batch
+    public int getFifoMaxEventCount() {
+        if (mSensor == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return 0;
+        return mSensor.getFifoMaxEventCount();
+    }
+
+    // Samples of the FIFO reserved for this sensor
+    public int getFifoReservedEventCount() {
+        if (mSensor == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return 0;
+        return mSensor.getFifoReservedEventCount();
+    }
+
     private static int getSensorType(SensorType sensorType) {
 
         switch (sensorType) {
@@ -85,7 +184,11 @@ public abstract class AbstractSensor {
 
             case PRESSURE:
                 return Sensor.TYPE_PRESSURE;
+
+            // Fused from several sensors; the gyroscope drives it, see OrientationSensor
+            case ORIENTATION:
+                return Sensor.TYPE_GYROSCOPE;
         }
         return 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,259 @@
+package com.fuse.sensorkit;
+
+/*
+    Fuses accelerometer, gyroscope and magnetometer samples into the device orientation.
+
+    This is a complementary filter in the form of Mahony's: the gyroscope is integrated for fast,
+    smooth changes, and its drift is corrected towards the orientation given by gravity (from the
+    accelerometer) and magnetic north (from the magnetometer). Corrections are fed back as an extra
+    rotation rate, proportional to the error plus an integral term that cancels gyroscope bias.
+    Without magnetometer samples only tilt is corrected, and the heading is relative to where the
+    device was pointing at the start.
+
+    The orientation is a unit quaternion rotating device coordinates to world coordinates, the
+    same frame as Android's rotation vector: x east, y north, z up. Timestamps are in nanoseconds.
+
+    It has no Android dependencies and allocates nothing after construction, so it can be fed
+    recorded sample streams on a plain JVM, as Tests/Android/OrientationFusionCheck.java does.
+    Not thread-safe; feed it from one thread.
+*/
+public final class OrientationFusion
+{
+    static final float STANDARD_GRAVITY = 9.80665f;
+
+    // Proportional gain in rad/s per unit of error; about a 0.5 s time constant
+    float mKp = 2.0f;
+    // Integral gain for the gyroscope bias estimate
+    float mKi = 0.1f;
+    // Accelerometer samples further than this from 1 g are treated as motion, not gravity
+    float mGravityTolerance = 0.15f;
+    // Gyroscope intervals longer than this are treated as a gap and not integrated
+    static final long MAX_GYROSCOPE_INTERVAL_NANOS = 200000000L;
+
+    // Orientation, w first
+    private final float[] mQ = new float[] { 1, 0, 0, 0 };
+    private boolean mInitialized;
+
+    private final float[] mAccel = new float[3];
+    private boolean mHasAccel;
+    private final float[] mMag = new float[3];
+    private boolean mHasMag;
+
+    private final float[] mBias = new float[3];
+    private long mLastGyroTimestamp;
+
+    // Scratch space, to keep every update allocation free
+    private final float[] mMatrix = new float[9];
+    private final float[] mUp = new float[3];
+    private final float[] mError = new float[3];
+
+    public void reset() {
+        mQ[0] = 1; mQ[1] = 0; mQ[2] = 0; mQ[3] = 0;
+        mInitialized = false;
+        mHasAccel = false;
+        mHasMag = false;
+        mBias[0] = mBias[1] = mBias[2] = 0;
+        mLastGyroTimestamp = 0;
+    }
+
+    public void onAccelerometer(float x, float y, float z, long timestampNanos) {
+        mAccel[0] = x; mAccel[1] = y; mAccel[2] = z;
+        mHasAccel = true;
+        if (!mInitialized)
+            initialize();
+    }
+
+    public void onMagnetometer(float x, float y, float z, long timestampNanos) {
+        mMag[0] = x; mMag[1] = y; mMag[2] = z;
+        mHasMag = true;
+    }
+
+    /*
+        Integrates a gyroscope sample in rad/s, corrected by the latest accelerometer and
+        magnetometer samples. Returns whether the orientation is known yet.
+    */
+    public boolean onGyroscope(float x, float y, float z, long timestampNanos) {
+        long last = mLastGyroTimestamp;
+        mLastGyroTimestamp = timestampNanos;
+        if (!mInitialized)
+            return false;
+        if (last == 0 || timestampNanos <= last || timestampNanos - last > MAX_GYROSCOPE_INTERVAL_NANOS)
+            return true;
+        float dt = (timestampNanos - last) / 1000000000.0f;
+
+        computeError();
+        if (mKi > 0) {
+            mBias[0] += mKi * mError[0] * dt;
+            mBias[1] += mKi * mError[1] * dt;
+            mBias[2] += mKi * mError[2] * dt;
+        }
+        integrate(
+            x + mKp * mError[0] + mBias[0],
+            y + mKp * mError[1] + mBias[1],
+            z + mKp * mError[2] + mBias[2],
+            dt);
+        return true;
+    }
+
+    // Sets the orientation straight from gravity and north, so the filter doesn't have to converge from nothing
+    private void initialize() {
+        if (!isGravity())
+            return;
+        float mx = 0, my = 1, mz = 0;
+        if (mHasMag) {
+            mx = mMag[0]; my = mMag[1]; mz = mMag[2];
+        } else if (Math.abs(mAccel[1]) > Math.abs(mAccel[0]) && Math.abs(mAccel[1]) > Math.abs(mAccel[2])) {
+            // Device y is close to vertical, so use x as the heading reference instead
+            mx = 1; my = 0;
+        }
+        if (!rotationMatrix(mAccel[0], mAccel[1], mAccel[2], mx, my, mz, mMatrix))
+            return;
+        matrixToQuaternion(mMatrix, mQ);
+        mInitialized = true;
+    }
+
+    private boolean isGravity() {
+        if (!mHasAccel)
+            return false;
+        float norm = length(mAccel[0], mAccel[1], mAccel[2]);
+        return Math.abs(norm - STANDARD_GRAVITY) < mGravityTolerance * STANDARD_GRAVITY;
+    }
+
+    // The rotation, in device coordinates, that would bring the estimate towards the measurements
+    private void computeError() {
+        mError[0] = mError[1] = mError[2] = 0;
+        if (!isGravity())
+            return;
+
+        toMatrix(mQ, mMatrix);
+        // World up in device coordinates is the last row of the device-to-world matrix
+        mUp[0] = mMatrix[6]; mUp[1] = mMatrix[7]; mUp[2] = mMatrix[8];
+
+        float ax = mAccel[0], ay = mAccel[1], az = mAccel[2];
+        float an = length(ax, ay, az);
+        ax /= an; ay /= an; az /= an;
+        mError[0] += ay * mUp[2] - az * mUp[1];
+        mError[1] += az * mUp[0] - ax * mUp[2];
+        mError[2] += ax * mUp[1] - ay * mUp[0];
+
+        if (!mHasMag)
+            return;
+        float mx = mMag[0], my = mMag[1], mz = mMag[2];
+        float mn = length(mx, my, mz);
+        if (mn == 0)
+            return;
+        mx /= mn; my /= mn; mz /= mn;
+        // The field in world coordinates, with its horizontal part turned to point north
+        float hx = mMatrix[0] * mx + mMatrix[1] * my + mMatrix[2] * mz;
+        float hy = mMatrix[3] * mx + mMatrix[4] * my + mMatrix[5] * mz;
+        float hz = mMatrix[6] * mx + mMatrix[7] * my + mMatrix[8] * mz;
+        float by = (float)Math.sqrt(hx * hx + hy * hy);
+        float bz = hz;
+        // Back to device coordinates: the transpose times (0, by, bz)
+        float wx = mMatrix[3] * by + mMatrix[6] * bz;
+        float wy = mMatrix[4] * by + mMatrix[7] * bz;
+        float wz = mMatrix[5] * by + mMatrix[8] * bz;
+        mError[0] += my * wz - mz * wy;
+        mError[1] += mz * wx - mx * wz;
+        mError[2] += mx * wy - my * wx;
+    }
+
+    // q = q * exp(omega * dt / 2), for a rotation rate in device coordinates
+    private void integrate(float wx, float wy, float wz, float dt) {
+        float rate = length(wx, wy, wz);
+        float half = rate * dt * 0.5f;
+        if (half < 1e-9f)
+            return;
+        float s = (float)Math.sin(half) / rate;
+        float dw = (float)Math.cos(half), dx = wx * s, dy = wy * s, dz = wz * s;
+        float qw = mQ[0], qx = mQ[1], qy = mQ[2], qz = mQ[3];
+        float nw = qw * dw - qx * dx - qy * dy - qz * dz;
+        float nx = qw * dx + qx * dw + qy * dz - qz * dy;
+        float ny = qw * dy - qx * dz + qy * dw + qz * dx;
+        float nz = qw * dz + qx * dy - qy * dx + qz * dw;
+        float n = (float)Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+        mQ[0] = nw / n; mQ[1] = nx / n; mQ[2] = ny / n; mQ[3] = nz / n;
+    }
+
+    /*
+        Copies the orientation to out as x, y, z, w. The sign is chosen so w >= 0, which makes
+        x, y and z enough to describe it, like the values of Android's rotation vector.
+    */
+    public void getQuaternion(float[] out) {
+        float sign = mQ[0] < 0 ? -1 : 1;
+        out[0] = sign * mQ[1];
+        out[1] = sign * mQ[2];
+        out[2] = sign * mQ[3];
+        out[3] = sign * mQ[0];
+    }
+
+    // Like SensorManager.getRotationMatrix, for gravity and a geomagnetic field in device coordinates
+    static boolean rotationMatrix(float ax, float ay, float az, float ex, float ey, float ez, float[] r) {
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        float hn = length(hx, hy, hz);
+        float an = length(ax, ay, az);
+        if (hn < 1e-6f || an < 1e-6f)
+            return false;
+        hx /= hn; hy /= hn; hz /= hn;
+        ax /= an; ay /= an; az /= an;
+        float mx = ay * hz - az * hy;
+        float my = az * hx - ax * hz;
+        float mz = ax * hy - ay * hx;
+        r[0] = hx; r[1] = hy; r[2] = hz;
+        r[3] = mx; r[4] = my; r[5] = mz;
+        r[6] = ax; r[7] = ay; r[8] = az;
+        return true;
+    }
+
+    static void matrixToQuaternion(float[] r, float[] q) {
+        float trace = r[0] + r[4] + r[8];
+        float w, x, y, z;
+        if (trace > 0) {
+            float s = (float)Math.sqrt(trace + 1) * 2;
+            w = 0.25f * s;
+            x = (r[7] - r[5]) / s;
+            y = (r[2] - r[6]) / s;
+            z = (r[3] - r[1]) / s;
+        } else if (r[0] > r[4] && r[0] > r[8]) {
+            float s = (float)Math.sqrt(1 + r[0] - r[4] - r[8]) * 2;
+            w = (r[7] - r[5]) / s;
+            x = 0.25f * s;
+            y = (r[1] + r[3]) / s;
+            z = (r[2] + r[6]) / s;
+        } else if (r[4] > r[8]) {
+            float s = (float)Math.sqrt(1 + r[4] - r[0] - r[8]) * 2;
+            w = (r[2] - r[6]) / s;
+            x = (r[1] + r[3]) / s;
+            y = 0.25f * s;
+            z = (r[5] + r[7]) / s;
+        } else {
+            float s = (float)Math.sqrt(1 + r[8] - r[0] - r[4]) * 2;
+            w = (r[3] - r[1]) / s;
+            x = (r[2] + r[6]) / s;
+            y = (r[5] + r[7]) / s;
+            z = 0.25f * s;
+        }
+        float n = (float)Math.sqrt(w * w + x * x + y * y + z * z);
+        q[0] = w / n; q[1] = x / n; q[2] = y / n; q[3] = z / n;
+    }
+
+    // Row-major device-to-world matrix of a w-first quaternion
+    static void toMatrix(float[] q, float[] r) {
+        float w = q[0], x = q[1], y = q[2], z = q[3];
+        r[0] = 1 - 2 * (y * y + z * z);
+        r[1] = 2 * (x * y - z * w);
+        r[2] = 2 * (x * z + y * w);
+        r[3] = 2 * (x * y + z * w);
+        r[4] = 1 - 2 * (x * x + z * z);
+        r[5] = 2 * (y * z - x * w);
+        r[6] = 2 * (x * z - y * w);
+        r[7] = 2 * (y * z + x * w);
+        r[8] = 1 - 2 * (x * x + y * y);
+    }
+
+    static float length(float x, float y, float z) {
+        return (float)Math.sqrt(x * x + y * y + z * z);
+    }
+}
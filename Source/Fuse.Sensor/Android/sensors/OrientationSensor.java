@@ -0,0 +1,113 @@
+package com.fuse.sensorkit;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+
+/*
+    The device orientation, fused on the device from the accelerometer, gyroscope and magnetometer
+    by OrientationFusion.
+
+    All three sensors run at the requested sampling period and are received on the same sensor
+    thread, so the fusion sees every sample without any locking. Samples are the x, y and z of the
+    orientation quaternion, like RotationSensor's, written at most averageRateHz times per second.
+    The magnetometer is optional; without it the heading is relative to the starting one.
+*/
+public class OrientationSensor extends AbstractSensor {
+
+    private final OrientationFusion mFusion = new OrientationFusion();
+    private final float[] mQuaternion = new float[4];
+    private final Sensor mAccelerometer;
+    private final Sensor mMagnetometer;
+    private final SensorEventListener mReferenceListener;
+    private long mOutputPeriodNanos;
+    private long mNextOutput;
+
+    public OrientationSensor() {
+        super(SensorType.ORIENTATION);
+        mAccelerometer = getSensorManager().getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mMagnetometer = getSensorManager().getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+
+        mReferenceListener = new SensorEventListener() {
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                // Ignore
+            }
+
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                float[] values = event.values;
+                if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER)
+                    mFusion.onAccelerometer(values[0], values[1], values[2], event.timestamp);
+                else
+                    mFusion.onMagnetometer(values[0], values[1], values[2], event.timestamp);
+            }
+        };
+    }
+
+    /*
+        Filtering doesn't apply to orientations; averageRateHz is the rate orientations are written
+        at instead, 0 for every gyroscope sample. The default sampling period is
+        SENSOR_DELAY_GAME, as the gyroscope has to be integrated often to be accurate.
+    */
+    @Override
+    public void start(int samplingPeriodUs, int maxReportLatencyUs, int filter, float cutoffHz, float averageRateHz) throws Exception {
+        if (isSensing)
+            stop();
+        if (mAccelerometer == null)
+            throw new Exception(getSensorName() + " sensor is not available.");
+
+        mFusion.reset();
+        mOutputPeriodNanos = averageRateHz > 0 ? (long)(1000000000.0 / averageRateHz) : 0;
+        mNextOutput = 0;
+
+        int samplingPeriod = samplingPeriodUs < 0 ? SensorManager.SENSOR_DELAY_GAME : samplingPeriodUs;
+        registerReference(mAccelerometer, samplingPeriod, maxReportLatencyUs);
+        if (mMagnetometer != null)
+            registerReference(mMagnetometer, samplingPeriod, maxReportLatencyUs);
+        try {
+            super.start(samplingPeriod, maxReportLatencyUs, SensorSampleFilter.NONE, 0, 0);
+        } catch (Exception e) {
+            getSensorManager().unregisterListener(mReferenceListener);
+            throw e;
+        }
+    }
+
+    @Override
+    public void stop() {
+        getSensorManager().unregisterListener(mReferenceListener);
+        super.stop();
+    }
+
+    private void registerReference(Sensor sensor, int samplingPeriod, int maxReportLatencyUs) {
+        if (maxReportLatencyUs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            getSensorManager().registerListener(mReferenceListener, sensor, samplingPeriod, maxReportLatencyUs, handler());
+        else
+            getSensorManager().registerListener(mReferenceListener, sensor, samplingPeriod, handler());
+    }
+
+    // Gyroscope samples
+    @Override
+    protected void writeSample(SensorEvent event, SensorSampleFilter samples) {
+        long timestamp = event.timestamp;
+        if (!mFusion.onGyroscope(event.values[0], event.values[1], event.values[2], timestamp))
+            return;
+        if (timestamp < mNextOutput)
+            return;
+        // Keep outputs evenly spaced, unless there was a gap
+        mNextOutput += mOutputPeriodNanos;
+        if (mNextOutput <= timestamp)
+            mNextOutput = timestamp + mOutputPeriodNanos;
+        mFusion.getQuaternion(mQuaternion);
+        samples.process(mQuaternion[0], mQuaternion[1], mQuaternion[2], timestamp);
+    }
+
+    @Override
+    protected String getSensorName() {
+        return "Orientation";
+    }
+
+}
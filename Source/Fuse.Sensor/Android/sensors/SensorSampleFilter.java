@@ -0,0 +1,108 @@
+package com.fuse.sensorkit;
+
+/*
+    Processes samples on the sensor thread before they are written to the SensorSampleBuffer.
+
+    A first-order low-pass or high-pass filter with a cutoff frequency in Hz can be applied at the
+    sensor's native rate, and the (filtered) samples can be averaged down to a lower rate, so
+    smoothing happens on every sample even when far fewer are delivered. All state is kept in
+    fields; processing a sample allocates nothing.
+*/
+public final class SensorSampleFilter
+{
+    public static final int NONE = 0;
+    public static final int LOW_PASS = 1;
+    public static final int HIGH_PASS = 2;
+
+    private final SensorSampleBuffer mOut;
+
+    private int mFilter = NONE;
+    private float mTimeConstant;
+    private long mAveragePeriodNanos;
+
+    // Low-pass state, also used by the high-pass filter
+    private boolean mPrimed;
+    private float mLowX, mLowY, mLowZ;
+    private long mLastTimestamp;
+
+    // Averaging state: the samples summed so far in the period starting at mPeriodStart
+    private boolean mAveraging;
+    private int mCount;
+    private float mSumX, mSumY, mSumZ;
+    private long mPeriodStart;
+    private long mLastSumTimestamp;
+
+    public SensorSampleFilter(SensorSampleBuffer out) {
+        mOut = out;
+    }
+
+    /*
+        Sets up the filter and averaging, and resets their state. Only call while no samples are
+        being processed. A cutoffHz or averageRateHz of 0 or less turns that part off.
+    */
+    public void configure(int filter, float cutoffHz, float averageRateHz) {
+        mFilter = cutoffHz > 0 ? filter : NONE;
+        mTimeConstant = cutoffHz > 0 ? (float)(1.0 / (2.0 * Math.PI * cutoffHz)) : 0;
+        mAveragePeriodNanos = averageRateHz > 0 ? (long)(1000000000.0 / averageRateHz) : 0;
+        reset();
+    }
+
+    public void reset() {
+        mPrimed = false;
+        mAveraging = false;
+        mCount = 0;
+        mSumX = mSumY = mSumZ = 0;
+    }
+
+    public void process(float x, float y, float z, long timestampNanos) {
+        if (mFilter != NONE) {
+            if (!mPrimed) {
+                mLowX = x;
+                mLowY = y;
+                mLowZ = z;
+                mPrimed = true;
+            } else {
+                // Smoothing factor from the actual interval, so irregular sample timing is handled
+                float dt = (timestampNanos - mLastTimestamp) / 1000000000.0f;
+                float alpha = dt > 0 ? dt / (mTimeConstant + dt) : 0;
+                mLowX += alpha * (x - mLowX);
+                mLowY += alpha * (y - mLowY);
+                mLowZ += alpha * (z - mLowZ);
+            }
+            mLastTimestamp = timestampNanos;
+            if (mFilter == LOW_PASS) {
+                x = mLowX;
+                y = mLowY;
+                z = mLowZ;
+            } else {
+                x -= mLowX;
+                y -= mLowY;
+                z -= mLowZ;
+            }
+        }
+
+        if (mAveragePeriodNanos == 0) {
+            mOut.write(x, y, z, timestampNanos);
+            return;
+        }
+
+        if (!mAveraging) {
+            mPeriodStart = timestampNanos;
+            mAveraging = true;
+        } else if (timestampNanos - mPeriodStart >= mAveragePeriodNanos) {
+            if (mCount > 0)
+                mOut.write(mSumX / mCount, mSumY / mCount, mSumZ / mCount, mLastSumTimestamp);
+            mCount = 0;
+            mSumX = mSumY = mSumZ = 0;
+            // Keep periods back to back so the output rate doesn't drift, unless a gap was skipped
+            mPeriodStart += mAveragePeriodNanos;
+            if (timestampNanos - mPeriodStart >= mAveragePeriodNanos)
+                mPeriodStart = timestampNanos;
+        }
+        mSumX += x;
+        mSumY += y;
+        mSumZ += z;
+        mCount++;
+        mLastSumTimestamp = timestampNanos;
+    }
+}
@@ -0,0 +1,43 @@
+package com.fuse.sensorkit;
+
+/*
+    Replays a recorded sample stream through OrientationFusion. Uses no Android classes, so it
+    also runs on a plain JVM.
+
+    The stream is CSV with a header line, then one sample per line: the sensor (a for
+    accelerometer, g for gyroscope, m for magnetometer), the timestamp in nanoseconds and x, y, z.
+*/
+public final class OrientationFusionCheck {
+
+    // The orientation after the last sample, as the x, y, z OrientationSensor reports
+    public static float[] replay(String csv) {
+        OrientationFusion fusion = new OrientationFusion();
+        String[] lines = csv.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.length() == 0)
+                continue;
+            String[] fields = line.split(",");
+            long timestamp = Long.parseLong(fields[1]);
+            float x = Float.parseFloat(fields[2]);
+            float y = Float.parseFloat(fields[3]);
+            float z = Float.parseFloat(fields[4]);
+            switch (fields[0].charAt(0)) {
+                case 'a':
+                    fusion.onAccelerometer(x, y, z, timestamp);
+                    break;
+                case 'g':
+                    fusion.onGyroscope(x, y, z, timestamp);
+                    break;
+                case 'm':
+                    fusion.onMagnetometer(x, y, z, timestamp);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown sensor on line " + (i + 1) + ": " + line);
+            }
+        }
+        float[] q = new float[4];
+        fusion.getQuaternion(q);
+        return new float[] { q[0], q[1], q[2] };
+    }
+}